@@ -24,10 +24,83 @@ dependencies {
     testCompile("com.google.guava:guava:23.1-jre")
 }
 
+// Benchmarks and reports, run on demand
+val sourceSets = the<JavaPluginConvention>().sourceSets
+val main = sourceSets.getByName("main")
+val bench = sourceSets.create("bench")
+bench.compileClasspath += main.output + main.compileClasspath
+bench.runtimeClasspath += bench.output + main.output + main.runtimeClasspath
+
+dependencies {
+    // JMH microbenchmarks
+    "benchCompile"("org.openjdk.jmh:jmh-core:1.19")
+    "benchCompile"("org.openjdk.jmh:jmh-generator-annprocess:1.19")
+}
+
+// Sources and tests have non-ASCII literals, don't depend on the platform encoding
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+}
+
 tasks {
     "test"(Test::class) {
         maxHeapSize = "1g"
     }
+
+    "bulkLoad"(JavaExec::class) {
+        description = "Writes bulk files for node data directories, args: -PbulkArgs=\"<dump> <from> <node>=<dir> ...\""
+        classpath = bench.runtimeClasspath
+        main = "ru.mail.polis.vaddya.BulkLoad"
+        args = (project.findProperty("bulkArgs") as String? ?: "").split(" ").filter { it.isNotEmpty() }
+        maxHeapSize = "1g"
+    }
+
+    "restore"(JavaExec::class) {
+        description = "Restores node data from a backup, args: -PrestoreArgs=\"<backups dir> <snapshot> <data dir>\""
+        classpath = bench.runtimeClasspath
+        main = "ru.mail.polis.vaddya.Restore"
+        args = (project.findProperty("restoreArgs") as String? ?: "").split(" ").filter { it.isNotEmpty() }
+    }
+
+    "jmh"(JavaExec::class) {
+        description = "Runs JMH benchmarks, results go to build/reports/jmh/results.json; options: -PjmhArgs=\"...\""
+        classpath = bench.runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        val results = file("$buildDir/reports/jmh/results.json")
+        doFirst { results.parentFile.mkdirs() }
+        args = listOf("-rf", "json", "-rff", results.path) +
+                (project.findProperty("jmhArgs") as String? ?: "").split(" ").filter { it.isNotEmpty() }
+    }
+
+    "ringReport"(JavaExec::class) {
+        description = "Prints consistent hash ring key distribution and lookup latency"
+        classpath = bench.runtimeClasspath
+        main = "ru.mail.polis.vaddya.RingBenchmark"
+        maxHeapSize = "1g"
+    }
+
+    "clientReport"(JavaExec::class) {
+        description = "Compares latency of token-aware client requests with proxied ones on a local cluster"
+        classpath = bench.runtimeClasspath
+        main = "ru.mail.polis.vaddya.ClientBenchmark"
+        maxHeapSize = "1g"
+    }
+
+    "faultReport"(JavaExec::class) {
+        description = "Measures latency and 504s under replica faults, options: -PfaultArgs=\"--scenario slow --rate 200 ...\""
+        classpath = bench.runtimeClasspath
+        main = "ru.mail.polis.vaddya.FaultBenchmark"
+        maxHeapSize = "1g"
+        args = (project.findProperty("faultArgs") as String? ?: "").split(" ").filter { it.isNotEmpty() }
+    }
+
+    "loadgen"(JavaExec::class) {
+        description = "Runs open-loop stage 3 and YCSB workloads, options: -PloadArgs=\"--workload ycsb-a --rate 500 ...\""
+        classpath = bench.runtimeClasspath
+        main = "ru.mail.polis.vaddya.LoadGenerator"
+        maxHeapSize = "1g"
+        args = (project.findProperty("loadArgs") as String? ?: "").split(" ").filter { it.isNotEmpty() }
+    }
 }
 
 application {
@@ -0,0 +1,35 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Starts nodes for the benchmarks of other packages the way {@link Cluster} does:
+ * through {@link KVServiceFactory} and with a temporary data directory deleted on exit.
+ */
+public final class LocalNode {
+
+    private LocalNode() {
+        // Not instantiable
+    }
+
+    @NotNull
+    public static KVService start(
+            final int port,
+            @NotNull final Set<String> topology) throws IOException {
+        final KVService storage = KVServiceFactory.create(port, Files.createTempDirectory(), topology);
+        storage.start();
+        return storage;
+    }
+
+    /**
+     * @return a temporary data directory deleted on exit, for nodes configured beyond {@link #start}
+     */
+    @NotNull
+    public static File createTempDirectory() throws IOException {
+        return Files.createTempDirectory();
+    }
+}
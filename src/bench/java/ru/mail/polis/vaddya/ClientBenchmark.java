@@ -0,0 +1,106 @@
+package ru.mail.polis.vaddya;
+
+import ru.mail.polis.KVService;
+import ru.mail.polis.LocalNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares end-to-end latency of requests routed by {@link KVClient} with requests
+ * proxied by a random coordinator, on a local cluster.
+ * <p>
+ * Usage: {@code ClientBenchmark [nodes] [ack/from] [requests]}
+ */
+public final class ClientBenchmark {
+
+    private static final int BASE_PORT = 28080;
+    private static final int WARMUP_ROUNDS = 2;
+
+    private ClientBenchmark() {
+        // Not instantiable
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final String replicas = args.length > 1 ? args[1] : "2/3";
+        final int requests = args.length > 2 ? Integer.parseInt(args[2]) : 5_000;
+
+        final List<String> topology = new ArrayList<>(nodes);
+        final List<KVService> cluster = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            topology.add("http://localhost:" + (BASE_PORT + i));
+        }
+        try {
+            for (int i = 0; i < nodes; i++) {
+                cluster.add(LocalNode.start(BASE_PORT + i, new HashSet<>(topology)));
+            }
+
+            final KVClient client = new KVClient(topology);
+            System.out.println("Nodes: " + nodes + ", replicas: " + replicas + ", requests: " + requests);
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                proxied(topology, replicas, requests);
+                direct(client, replicas, requests);
+            }
+            report("proxied", proxied(topology, replicas, requests), requests);
+            report("token-aware", direct(client, replicas, requests), requests);
+        } finally {
+            cluster.forEach(KVService::stop);
+        }
+    }
+
+    private static long[] proxied(List<String> topology, String replicas, int requests) throws IOException {
+        final Random random = new Random(1);
+        final long[] latencies = new long[2 * requests];
+        for (int i = 0; i < requests; i++) {
+            final String node = topology.get(random.nextInt(topology.size()));
+            final long start = System.nanoTime();
+            KVClient.send(node, HttpMethod.PUT, key(i), replicas, value(i));
+            final long mid = System.nanoTime();
+            KVClient.send(node, HttpMethod.GET, key(i), replicas, null);
+            latencies[i] = mid - start;
+            latencies[requests + i] = System.nanoTime() - mid;
+        }
+        return latencies;
+    }
+
+    private static long[] direct(KVClient client, String replicas, int requests) throws IOException {
+        final long[] latencies = new long[2 * requests];
+        for (int i = 0; i < requests; i++) {
+            final long start = System.nanoTime();
+            client.put(key(i), value(i), replicas);
+            final long mid = System.nanoTime();
+            client.get(key(i), replicas);
+            latencies[i] = mid - start;
+            latencies[requests + i] = System.nanoTime() - mid;
+        }
+        return latencies;
+    }
+
+    private static void report(String name, long[] latencies, int requests) {
+        report(name + " PUT", Arrays.copyOfRange(latencies, 0, requests));
+        report(name + " GET", Arrays.copyOfRange(latencies, requests, latencies.length));
+    }
+
+    private static void report(String name, long[] latencies) {
+        Arrays.sort(latencies);
+        final double mean = Arrays.stream(latencies).average().orElse(0);
+        System.out.printf("%-16s mean %8.1f us, p50 %8.1f us, p99 %8.1f us%n", name,
+                mean / 1000,
+                latencies[latencies.length / 2] / 1000.0,
+                latencies[(int) (latencies.length * 0.99)] / 1000.0);
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+
+    private static byte[] value(int i) {
+        return ("value" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,147 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Microbenchmarks of a {@link DAO} implementation over a fresh directory.
+ * <p>
+ * The implementation is given by class name and must have a constructor taking the directory path,
+ * e.g. {@code -p dao=ru.mail.polis.vaddya.DAOImpl}. Single threaded benchmarks have
+ * {@code Concurrent} variants running in 4 threads; any benchmark can also be run with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DAOBenchmark {
+
+    @Param({"ru.mail.polis.vaddya.DAOImpl"})
+    private String dao;
+
+    @Param({"100", "1024", "65536"})
+    private int valueSize;
+
+    @Param({"10000"})
+    private int keys;
+
+    private Path dir;
+    private DAO storage;
+    private byte[] value;
+    private final AtomicLong newKeys = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dao-bench");
+        String entities = Files.createDirectory(dir.resolve("entities")).toString();
+        storage = (DAO) Class.forName(dao).getConstructor(String.class).newInstance(entities);
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (int i = 0; i < keys; i++) {
+            storage.upsert(key(i), value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * A key which is upserted before every {@code delete} invocation.
+     */
+    @State(Scope.Thread)
+    public static class Deleted {
+
+        private String key;
+
+        @Setup(Level.Invocation)
+        public void setUp(DAOBenchmark benchmark) throws IOException {
+            key = "deleted-" + Thread.currentThread().getId() + "-" + benchmark.newKeys.incrementAndGet();
+            benchmark.storage.upsert(key, benchmark.value);
+        }
+    }
+
+    @Benchmark
+    public byte[] getHit() throws IOException {
+        return storage.get(randomKey());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] getHitConcurrent() throws IOException {
+        return getHit();
+    }
+
+    @Benchmark
+    public byte[] getMiss() throws IOException {
+        try {
+            return storage.get("missing-" + ThreadLocalRandom.current().nextInt(keys));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public void upsertNew() throws IOException {
+        storage.upsert("new-" + newKeys.incrementAndGet(), value);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void upsertNewConcurrent() throws IOException {
+        upsertNew();
+    }
+
+    @Benchmark
+    public void upsertOverwrite() throws IOException {
+        storage.upsert(randomKey(), value);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void upsertOverwriteConcurrent() throws IOException {
+        upsertOverwrite();
+    }
+
+    @Benchmark
+    public void delete(Deleted deleted) throws IOException {
+        storage.delete(deleted.key);
+    }
+
+    private String randomKey() {
+        return key(ThreadLocalRandom.current().nextInt(keys));
+    }
+
+    private static String key(int i) {
+        return "key-" + i;
+    }
+}
@@ -0,0 +1,191 @@
+package ru.mail.polis.vaddya;
+
+import ru.mail.polis.LocalNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how coordinator latency and the share of {@code 504 Not Enough Replicas} respond to slow,
+ * flaky and paused replicas.
+ * <p>
+ * Every node of the local cluster is known to the others by the address of its {@link FaultProxy},
+ * so all replica traffic passes through the proxies, while the load goes straight to the first node,
+ * the coordinator. Faults are injected into the second (and third) node. Requests are sent open-loop,
+ * half PUTs and half GETs, and the latency is measured from the moment a request was due.
+ * <p>
+ * Usage: {@code FaultBenchmark [--option value ...]}, options:
+ * {@code --nodes 3}, {@code --replicas 2/3}, {@code --rate 200}, {@code --duration 10} seconds,
+ * {@code --connections 4}, {@code --keys 10000}, {@code --latency exp:20} for the slow replica scenarios
+ * and {@code --scenario all|baseline|slow|spikes|drops|pause|two-slow}.
+ */
+public final class FaultBenchmark {
+
+    private static final int BASE_PORT = 28280;
+    private static final int PROXY_PORT = 28380;
+    private static final long SETTLE_MILLIS = 3000;
+    private static final byte[] VALUE = new byte[256];
+
+    private FaultBenchmark() {
+        // Not instantiable
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        final int count = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        final FaultProxy.Latency slow = FaultProxy.Latency.parse(options.getOrDefault("latency", "exp:20"));
+        final long duration = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "10")));
+
+        final Set<String> topology = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            topology.add("http://localhost:" + (PROXY_PORT + i));
+        }
+        final List<KVServiceImpl> nodes = new ArrayList<>();
+        final List<FaultProxy> proxies = new ArrayList<>();
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (int i = 0; i < count; i++) {
+                final File data = LocalNode.createTempDirectory();
+                final KVServiceImpl node = new KVServiceImpl(BASE_PORT + i, "http://localhost:" + (PROXY_PORT + i),
+                        data, topology);
+                node.start();
+                nodes.add(node);
+                proxies.add(new FaultProxy(PROXY_PORT + i, BASE_PORT + i));
+            }
+            final FaultProxy first = proxies.get(1);
+            final FaultProxy second = proxies.get(Math.min(2, count - 1));
+
+            final Map<String, Runnable> scenarios = new LinkedHashMap<>();
+            scenarios.put("baseline", () -> {
+                // no faults
+            });
+            scenarios.put("slow", () -> first.setLatency(slow));
+            scenarios.put("spikes", () -> first.setLatency(FaultProxy.Latency.spike(0.02, 200_000)));
+            scenarios.put("drops", () -> first.setDropRate(0.02));
+            scenarios.put("pause", () -> scheduler.schedule(first::pause, duration / 3, TimeUnit.MILLISECONDS));
+            scenarios.put("two-slow", () -> {
+                first.setLatency(slow);
+                second.setLatency(slow);
+            });
+
+            final String scenario = options.getOrDefault("scenario", "all");
+            final String coordinator = "http://localhost:" + BASE_PORT;
+            preload(coordinator, options);
+            System.out.printf("%-10s %8s %9s %9s %9s %9s %9s %8s %7s%n", "scenario", "done/s", "p50,us", "p90,us",
+                    "p99,us", "p99.9,us", "max,us", "504,%", "errors");
+            for (Map.Entry<String, Runnable> entry : scenarios.entrySet()) {
+                if (!scenario.equals("all") && !scenario.equals(entry.getKey())) {
+                    continue;
+                }
+                entry.getValue().run();
+                try {
+                    run(entry.getKey(), coordinator, options);
+                } finally {
+                    proxies.forEach(FaultProxy::reset);
+                }
+                Thread.sleep(SETTLE_MILLIS);
+            }
+        } finally {
+            scheduler.shutdownNow();
+            for (FaultProxy proxy : proxies) {
+                proxy.close();
+            }
+            nodes.forEach(KVServiceImpl::stop);
+        }
+    }
+
+    private static void preload(String coordinator, Map<String, String> options) throws IOException {
+        final int keys = Integer.parseInt(options.getOrDefault("keys", "10000"));
+        final String replicas = options.getOrDefault("replicas", "2/3");
+        for (int i = 0; i < keys; i++) {
+            KVClient.send(coordinator, HttpMethod.PUT, key(i), replicas, VALUE);
+        }
+    }
+
+    private static void run(String name, String coordinator, Map<String, String> options) throws Exception {
+        final String replicas = options.getOrDefault("replicas", "2/3");
+        final int rate = Integer.parseInt(options.getOrDefault("rate", "200"));
+        final int connections = Integer.parseInt(options.getOrDefault("connections", "4"));
+        final int keys = Integer.parseInt(options.getOrDefault("keys", "10000"));
+        final long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+
+        final Histogram histogram = new Histogram();
+        final LongAdder notEnoughReplicas = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime();
+        final long end = start + duration;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(connections);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            futures.add(executor.submit(() -> {
+                for (long seq; ; ) {
+                    seq = sequence.getAndIncrement();
+                    final long due = start + seq * interval;
+                    if (due >= end) {
+                        return null;
+                    }
+                    for (long now; (now = System.nanoTime()) < due; ) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                    final String key = key(ThreadLocalRandom.current().nextInt(keys));
+                    int code;
+                    try {
+                        code = seq % 2 == 0
+                                ? KVClient.send(coordinator, HttpMethod.PUT, key, replicas, VALUE).getCode()
+                                : KVClient.send(coordinator, HttpMethod.GET, key, replicas, null).getCode();
+                    } catch (IOException e) {
+                        code = -1;
+                    }
+                    final long latency = System.nanoTime() - due;
+                    histogram.recordNanos(latency);
+                    max.accumulateAndGet(latency, Math::max);
+                    if (code == Response.NOT_ENOUGH_REPLICAS) {
+                        notEnoughReplicas.increment();
+                    } else if (code / 100 != 2 && code != Response.NOT_FOUND) {
+                        errors.increment();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        final long count = histogram.getCount();
+        // quantiles are bucket bounds, which may be above the largest sample
+        final long top = TimeUnit.NANOSECONDS.toMicros(max.get());
+        System.out.printf("%-10s %8.0f %9d %9d %9d %9d %9d %8.2f %7d%n", name,
+                count * 1e9 / (System.nanoTime() - start),
+                Math.min(top, histogram.quantile(0.5)), Math.min(top, histogram.quantile(0.9)),
+                Math.min(top, histogram.quantile(0.99)), Math.min(top, histogram.quantile(0.999)), top,
+                count == 0 ? 0.0 : 100.0 * notEnoughReplicas.sum() / count, errors.sum());
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+}
@@ -0,0 +1,195 @@
+package ru.mail.polis.vaddya;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP proxy in front of a node which delays, drops or holds the traffic passing through it.
+ * <p>
+ * Latency is added to every chunk sent to the node, so with keep-alive connections it applies about once
+ * per request. A dropped chunk resets both sides of the connection. While paused, nothing is forwarded
+ * in either direction, as if the node hung in a long GC pause.
+ */
+final class FaultProxy implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocket server;
+    private final int target;
+    private final ExecutorService pumps = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "fault-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Latency latency = Latency.NONE;
+    private volatile double dropRate;
+    private volatile boolean paused;
+
+    FaultProxy(int port, int target) throws IOException {
+        this.server = new ServerSocket();
+        this.server.setReuseAddress(true);
+        this.server.bind(new InetSocketAddress(port), 1024);
+        this.target = target;
+        pumps.execute(this::accept);
+    }
+
+    void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    synchronized void pause() {
+        paused = true;
+    }
+
+    synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    void reset() {
+        setLatency(Latency.NONE);
+        setDropRate(0);
+        resume();
+    }
+
+    @Override
+    public void close() throws IOException {
+        resume();
+        server.close();
+        pumps.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                final Socket client = server.accept();
+                final Socket node = new Socket("localhost", target);
+                client.setTcpNoDelay(true);
+                node.setTcpNoDelay(true);
+                pumps.execute(() -> pump(client, node, true));
+                pumps.execute(() -> pump(node, client, false));
+            } catch (IOException e) {
+                // closed or the node is down, the client sees a reset
+            }
+        }
+    }
+
+    private void pump(Socket from, Socket to, boolean toNode) {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream is = from.getInputStream();
+             OutputStream os = to.getOutputStream()) {
+            for (int read; (read = is.read(buffer)) >= 0; ) {
+                awaitResumed();
+                if (toNode) {
+                    final long delay = latency.nextMicros();
+                    if (delay > 0) {
+                        TimeUnit.MICROSECONDS.sleep(delay);
+                    }
+                    if (ThreadLocalRandom.current().nextDouble() < dropRate) {
+                        abort(from);
+                        abort(to);
+                        return;
+                    }
+                }
+                os.write(buffer, 0, read);
+                os.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // the other pump closes its side as well
+        } finally {
+            close(from);
+            close(to);
+        }
+    }
+
+    private synchronized void awaitResumed() throws InterruptedException {
+        while (paused) {
+            wait();
+        }
+    }
+
+    private static void abort(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (IOException e) {
+            // already closed
+        }
+        close(socket);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Distribution of the latency added to a request.
+     */
+    interface Latency {
+
+        Latency NONE = () -> 0;
+
+        long nextMicros();
+
+        /**
+         * Parses {@code none}, {@code fixed:ms}, {@code uniform:min:max}, {@code exp:mean}
+         * or {@code spike:probability:ms}.
+         */
+        static Latency parse(String spec) {
+            final String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "none":
+                    return NONE;
+                case "fixed":
+                    return fixed(ms(parts[1]));
+                case "uniform":
+                    return uniform(ms(parts[1]), ms(parts[2]));
+                case "exp":
+                    return exponential(ms(parts[1]));
+                case "spike":
+                    return spike(Double.parseDouble(parts[1]), ms(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown latency " + spec);
+            }
+        }
+
+        static Latency fixed(long micros) {
+            return () -> micros;
+        }
+
+        static Latency uniform(long minMicros, long maxMicros) {
+            return () -> ThreadLocalRandom.current().nextLong(minMicros, maxMicros + 1);
+        }
+
+        static Latency exponential(long meanMicros) {
+            return () -> (long) (-meanMicros * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+        }
+
+        /**
+         * Rare long stalls of otherwise fast requests, the usual shape of a tail.
+         */
+        static Latency spike(double probability, long micros) {
+            return () -> ThreadLocalRandom.current().nextDouble() < probability ? micros : 0;
+        }
+
+        static long ms(String value) {
+            return TimeUnit.MILLISECONDS.toMicros(Long.parseLong(value));
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package ru.mail.polis.vaddya;
+
+import ru.mail.polis.KVService;
+import ru.mail.polis.LocalNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for the stage 3 workloads and the YCSB core workloads.
+ * <p>
+ * Requests are scheduled at a fixed rate and every latency is measured from the moment the request
+ * was due, not from when a connection got free, so a stalled server shows up in the percentiles
+ * instead of silently lowering the offered load (no coordinated omission).
+ * <p>
+ * Usage: {@code LoadGenerator [--option value ...]}, options:
+ * <ul>
+ * <li>{@code --cluster http://host:port,...} -- external cluster, otherwise {@code --nodes} are started in-process</li>
+ * <li>{@code --nodes 3}</li>
+ * <li>{@code --workload stage3}: one of {@code put, put-overwrite, get, get-repeat, mix, ycsb-a .. ycsb-f, stage3},
+ * where {@code stage3} runs the whole matrix of the first five over replicas and connections</li>
+ * <li>{@code --replicas 2/3}, {@code --connections 1}</li>
+ * <li>{@code --rate 500} requests per second, {@code --duration 10} and {@code --warmup 2} seconds</li>
+ * <li>{@code --keys 10000}, {@code --value-size 256}, {@code --distribution zipfian|uniform}</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+
+    private static final int BASE_PORT = 28180;
+    private static final int PRELOAD_THREADS = 4;
+    private static final int MAX_SCAN = 10;
+    private static final double[] PERCENTILES = {0.9, 0.99, 0.999};
+
+    private final List<String> cluster;
+    private final Map<String, String> options;
+    private final int keys;
+    private final byte[] value;
+    private final boolean zipfian;
+
+    private LoadGenerator(List<String> cluster, Map<String, String> options) {
+        this.cluster = cluster;
+        this.options = options;
+        this.keys = Integer.parseInt(options.getOrDefault("keys", "10000"));
+        this.value = new byte[Integer.parseInt(options.getOrDefault("value-size", "256"))];
+        this.zipfian = !"uniform".equals(options.getOrDefault("distribution", "zipfian"));
+        new Random(1).nextBytes(value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        final List<KVService> nodes = new ArrayList<>();
+        final List<String> cluster = new ArrayList<>();
+        if (options.containsKey("cluster")) {
+            cluster.addAll(Arrays.asList(options.get("cluster").split(",")));
+        } else {
+            final int count = Integer.parseInt(options.getOrDefault("nodes", "3"));
+            for (int i = 0; i < count; i++) {
+                cluster.add("http://localhost:" + (BASE_PORT + i));
+            }
+            for (int i = 0; i < count; i++) {
+                nodes.add(LocalNode.start(BASE_PORT + i, new HashSet<>(cluster)));
+            }
+        }
+
+        try {
+            final LoadGenerator generator = new LoadGenerator(cluster, options);
+            final String workload = options.getOrDefault("workload", "stage3");
+            System.out.printf("%-14s %-8s %5s %9s %9s %7s %9s %9s %9s %9s%n", "workload", "replicas", "conns",
+                    "target/s", "done/s", "errors", "mean,us", "p90,us", "p99,us", "p99.9,us");
+            if ("stage3".equals(workload)) {
+                for (String name : new String[]{"put", "put-overwrite", "get", "get-repeat", "mix"}) {
+                    for (String replicas : new String[]{"2/3", "3/3"}) {
+                        for (int connections : new int[]{1, 2, 4}) {
+                            generator.run(Workload.of(name), replicas, connections);
+                        }
+                    }
+                }
+            } else {
+                generator.run(Workload.of(workload), options.getOrDefault("replicas", "2/3"),
+                        Integer.parseInt(options.getOrDefault("connections", "1")));
+            }
+        } finally {
+            nodes.forEach(KVService::stop);
+        }
+    }
+
+    private void run(Workload workload,
+                     String replicas,
+                     int connections) throws Exception {
+        final int rate = Integer.parseInt(options.getOrDefault("rate", "500"));
+        final long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        final long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "2")));
+        final String prefix = "k" + System.nanoTime() + "-";
+        if (workload.needsData()) {
+            preload(prefix, replicas);
+        }
+
+        final Histogram histogram = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicLong inserted = new AtomicLong(keys);
+        final KeyChooser chooser = zipfian ? new Zipfian(keys) : new Uniform(keys);
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureFrom = start + warmup;
+        final long end = measureFrom + duration;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(connections);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            final String node = cluster.get(c % cluster.size());
+            futures.add(executor.submit(() -> {
+                for (long seq; ; ) {
+                    seq = sequence.getAndIncrement();
+                    final long due = start + seq * interval;
+                    if (due >= end) {
+                        return null;
+                    }
+                    for (long now; (now = System.nanoTime()) < due; ) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                    final boolean ok = workload.execute(this, node, prefix, replicas, seq, chooser, inserted);
+                    if (due >= measureFrom) {
+                        histogram.recordNanos(System.nanoTime() - due);
+                        if (!ok) {
+                            errors.increment();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        final double elapsed = (System.nanoTime() - measureFrom) / 1e9;
+        executor.shutdown();
+
+        final long count = histogram.getCount();
+        System.out.printf("%-14s %-8s %5d %9d %9.0f %7d %9.0f %9d %9d %9d%n", workload.name, replicas,
+                connections, rate, count / elapsed, errors.sum(),
+                count == 0 ? 0.0 : (double) histogram.getSum() / count,
+                histogram.quantile(PERCENTILES[0]), histogram.quantile(PERCENTILES[1]),
+                histogram.quantile(PERCENTILES[2]));
+    }
+
+    private void preload(String prefix, String replicas) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(PRELOAD_THREADS);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < PRELOAD_THREADS; t++) {
+            final int first = t;
+            futures.add(executor.submit(() -> {
+                for (int i = first; i < keys; i += PRELOAD_THREADS) {
+                    put(cluster.get(i % cluster.size()), prefix + i, replicas);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    private boolean get(String node, String key, String replicas) throws IOException {
+        final int code = KVClient.send(node, HttpMethod.GET, key, replicas, null).getCode();
+        return code == Response.OK || code == Response.NOT_FOUND;
+    }
+
+    private boolean put(String node, String key, String replicas) throws IOException {
+        return KVClient.send(node, HttpMethod.PUT, key, replicas, value).getCode() == Response.CREATED;
+    }
+
+    /**
+     * Operation mix of a workload; {@code seq} is the number of the request in the run.
+     */
+    private enum Workload {
+        PUT("put", false) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return g.put(ctx.node, ctx.prefix + "new-" + ctx.seq, ctx.replicas);
+            }
+        },
+        PUT_OVERWRITE("put-overwrite", false) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return g.put(ctx.node, ctx.prefix + ctx.chooser.next(), ctx.replicas);
+            }
+        },
+        GET("get", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return g.get(ctx.node, ctx.prefix + ctx.seq % g.keys, ctx.replicas);
+            }
+        },
+        GET_REPEAT("get-repeat", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return g.get(ctx.node, ctx.prefix + ctx.chooser.next(), ctx.replicas);
+            }
+        },
+        MIX("mix", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return ctx.chance(0.5) ? GET_REPEAT.op(g, ctx) : PUT_OVERWRITE.op(g, ctx);
+            }
+        },
+        YCSB_A("ycsb-a", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return MIX.op(g, ctx);
+            }
+        },
+        YCSB_B("ycsb-b", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return ctx.chance(0.95) ? GET_REPEAT.op(g, ctx) : PUT_OVERWRITE.op(g, ctx);
+            }
+        },
+        YCSB_C("ycsb-c", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                return GET_REPEAT.op(g, ctx);
+            }
+        },
+        YCSB_D("ycsb-d", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                if (ctx.chance(0.95)) {
+                    return g.get(ctx.node, ctx.prefix + ctx.latest(), ctx.replicas);
+                }
+                return g.put(ctx.node, ctx.prefix + ctx.inserted.getAndIncrement(), ctx.replicas);
+            }
+        },
+        /**
+         * There are no range reads, so a scan is a run of GETs of consecutive keys.
+         */
+        YCSB_E("ycsb-e", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                if (!ctx.chance(0.95)) {
+                    return g.put(ctx.node, ctx.prefix + ctx.inserted.getAndIncrement(), ctx.replicas);
+                }
+                final long first = ctx.chooser.next();
+                final int length = 1 + ThreadLocalRandom.current().nextInt(MAX_SCAN);
+                boolean ok = true;
+                for (long key = first; key < first + length; key++) {
+                    ok &= g.get(ctx.node, ctx.prefix + key, ctx.replicas);
+                }
+                return ok;
+            }
+        },
+        YCSB_F("ycsb-f", true) {
+            @Override
+            boolean op(LoadGenerator g, Context ctx) throws IOException {
+                if (ctx.chance(0.5)) {
+                    return GET_REPEAT.op(g, ctx);
+                }
+                final String key = ctx.prefix + ctx.chooser.next();
+                return g.get(ctx.node, key, ctx.replicas) && g.put(ctx.node, key, ctx.replicas);
+            }
+        };
+
+        private final String name;
+        private final boolean needsData;
+
+        Workload(String name, boolean needsData) {
+            this.name = name;
+            this.needsData = needsData;
+        }
+
+        static Workload of(String name) {
+            for (Workload workload : values()) {
+                if (workload.name.equals(name)) {
+                    return workload;
+                }
+            }
+            throw new IllegalArgumentException("Unknown workload " + name);
+        }
+
+        boolean needsData() {
+            return needsData;
+        }
+
+        boolean execute(LoadGenerator g,
+                        String node,
+                        String prefix,
+                        String replicas,
+                        long seq,
+                        KeyChooser chooser,
+                        AtomicLong inserted) {
+            try {
+                return op(g, new Context(node, prefix, replicas, seq, chooser, inserted));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        abstract boolean op(LoadGenerator g, Context ctx) throws IOException;
+    }
+
+    private static final class Context {
+
+        private final String node;
+        private final String prefix;
+        private final String replicas;
+        private final long seq;
+        private final KeyChooser chooser;
+        private final AtomicLong inserted;
+
+        private Context(String node,
+                        String prefix,
+                        String replicas,
+                        long seq,
+                        KeyChooser chooser,
+                        AtomicLong inserted) {
+            this.node = node;
+            this.prefix = prefix;
+            this.replicas = replicas;
+            this.seq = seq;
+            this.chooser = chooser;
+            this.inserted = inserted;
+        }
+
+        private boolean chance(double probability) {
+            return ThreadLocalRandom.current().nextDouble() < probability;
+        }
+
+        /**
+         * Recently inserted keys are the most popular ones.
+         */
+        private long latest() {
+            final long last = inserted.get() - 1;
+            return Math.max(0, last - chooser.nextRank());
+        }
+    }
+
+    private interface KeyChooser {
+
+        /**
+         * @return the rank of the next key, {@code 0} being the most popular one
+         */
+        long nextRank();
+
+        /**
+         * @return the next key, with popular keys spread over the whole key space
+         */
+        long next();
+    }
+
+    private static final class Uniform implements KeyChooser {
+
+        private final int keys;
+
+        private Uniform(int keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public long nextRank() {
+            return ThreadLocalRandom.current().nextInt(keys);
+        }
+
+        @Override
+        public long next() {
+            return nextRank();
+        }
+    }
+
+    /**
+     * Zipfian ranks after Gray et al. "Quickly Generating Billion-Record Synthetic Databases",
+     * as in YCSB, with the default constant of 0.99. Ranks are scrambled by a hash into keys.
+     */
+    private static final class Zipfian implements KeyChooser {
+
+        private static final double THETA = 0.99;
+
+        private final int keys;
+        private final double alpha;
+        private final double zeta;
+        private final double eta;
+
+        private Zipfian(int keys) {
+            this.keys = keys;
+            this.alpha = 1 / (1 - THETA);
+            this.zeta = zeta(keys);
+            this.eta = (1 - Math.pow(2.0 / keys, 1 - THETA)) / (1 - zeta(2) / zeta);
+        }
+
+        private static double zeta(long n) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+
+        @Override
+        public long nextRank() {
+            final double u = ThreadLocalRandom.current().nextDouble();
+            final double uz = u * zeta;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, THETA)) {
+                return 1;
+            }
+            return Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        @Override
+        public long next() {
+            return Long.remainderUnsigned(Hash.mix64(nextRank()), keys);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mail.polis.vaddya;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints the key distribution report for {@link ConsistentHashRing} and measures lookup latency.
+ * <p>
+ * Usage: {@code RingBenchmark [nodes] [vnodes] [keys]}
+ */
+public final class RingBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURE_ROUNDS = 5;
+
+    private RingBenchmark() {
+        // Not instantiable
+    }
+
+    public static void main(String[] args) {
+        final int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int vnodes = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        final int keys = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+
+        final List<String> topology = topology(nodes);
+        final ConsistentHashRing ring = new ConsistentHashRing(topology, vnodes);
+
+        System.out.println("Nodes: " + nodes + ", vnodes: " + vnodes + ", keys: " + keys);
+        System.out.println();
+        report(ring, keys);
+        System.out.println();
+        movement(topology, vnodes, keys);
+        System.out.println();
+        lookup(ring, keys);
+    }
+
+    private static List<String> topology(int nodes) {
+        final List<String> topology = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            topology.add("http://localhost:" + (8080 + i));
+        }
+        return topology;
+    }
+
+    private static void report(ConsistentHashRing ring, int keys) {
+        final Map<String, Integer> primary = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            primary.merge(ring.getNodes(key(i), 1).get(0), 1, Integer::sum);
+        }
+
+        final double expected = (double) keys / ring.size();
+        double variance = 0;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        System.out.println("Primary replica distribution:");
+        for (String node : ring.getNodes()) {
+            final int count = primary.getOrDefault(node, 0);
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+            variance += (count - expected) * (count - expected);
+            System.out.printf("  %-28s %10d  %6.2f%%%n", node, count, 100.0 * count / keys);
+        }
+        System.out.printf("  stddev: %.2f%% of mean, max/min: %.3f%n",
+                100.0 * Math.sqrt(variance / ring.size()) / expected,
+                (double) max / Math.max(min, 1));
+    }
+
+    private static void movement(List<String> topology, int vnodes, int keys) {
+        final List<String> grown = new ArrayList<>(topology);
+        grown.add("http://localhost:" + (8080 + topology.size()));
+        final ConsistentHashRing before = new ConsistentHashRing(topology, vnodes);
+        final ConsistentHashRing after = new ConsistentHashRing(grown, vnodes);
+
+        int ringMoved = 0;
+        int moduloMoved = 0;
+        for (int i = 0; i < keys; i++) {
+            final String key = key(i);
+            if (!before.getNodes(key, 1).equals(after.getNodes(key, 1))) {
+                ringMoved++;
+            }
+            final int hash = key.hashCode() & Integer.MAX_VALUE;
+            if (hash % topology.size() != hash % grown.size()) {
+                moduloMoved++;
+            }
+        }
+        System.out.println("Keys moved when adding node " + grown.size() + ":");
+        System.out.printf("  ring:   %6.2f%% (ideal %.2f%%)%n", 100.0 * ringMoved / keys, 100.0 / grown.size());
+        System.out.printf("  modulo: %6.2f%%%n", 100.0 * moduloMoved / keys);
+    }
+
+    private static void lookup(ConsistentHashRing ring, int keys) {
+        final String[] ids = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            ids[i] = key(i);
+        }
+
+        long sink = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (String id : ids) {
+                sink += ring.getNodes(id, ring.size()).size();
+            }
+            final long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("Lookup of %d replicas: %.1f ns/op%n", ring.size(), (double) elapsed / keys);
+            }
+        }
+        if (sink == 0) {
+            System.out.println("Unexpected empty lookups");
+        }
+    }
+
+    private static String key(int i) {
+        return "key" + i;
+    }
+}
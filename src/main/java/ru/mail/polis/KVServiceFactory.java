@@ -1,7 +1,6 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
-import ru.mail.polis.vaddya.DAOImpl;
 import ru.mail.polis.vaddya.KVServiceImpl;
 
 import java.io.File;
@@ -49,7 +48,7 @@ final class KVServiceFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new KVServiceImpl(port, new DAOImpl(data.getPath()), topology);
+        return new KVServiceImpl(port, data, topology);
     }
 
 }
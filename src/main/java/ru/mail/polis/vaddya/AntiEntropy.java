@@ -0,0 +1,342 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static ru.mail.polis.vaddya.Response.CREATED;
+import static ru.mail.polis.vaddya.Response.OK;
+
+/**
+ * Background replica synchronization.
+ * <p>
+ * The token space is split into segments. Every round one (peer, segment) pair is repaired:
+ * both sides build a {@link MerkleTree} over the keys they are both replicas of, the trees
+ * are compared and only the entries of differing leaves are exchanged in both directions,
+ * at most {@code CHUNK_LEAVES} leaves per request and {@code PUSH_BYTES} per push, so neither side
+ * holds a whole segment in memory. Value reads and transfers of the repairing node are throttled
+ * by a shared {@link RateLimiter}, each transfer is charged before it starts; trees and ranges served
+ * to a peer are not, the peer's repair is already throttled on its side.
+ * The peer scans its whole segment to answer, so its requests wait for as long as the local scan
+ * of the segment would take at {@code highload.kv.repair.scan.rate} bytes per second.
+ */
+class AntiEntropy {
+
+    private static final Logger log = Logger.getLogger(AntiEntropy.class.getName());
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int LEAF_BITS = 10;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int LEAVES = 1 << LEAF_BITS;
+    private static final int CHUNK_LEAVES = 64;
+    private static final int PUSH_BYTES = 1024 * 1024;
+    private static final int TIMEOUT = Integer.getInteger("highload.kv.repair.timeout", 30000);
+    private static final long SCAN_BYTES_PER_SEC = Long.getLong("highload.kv.repair.scan.rate", 10 * 1024 * 1024);
+
+    @NotNull
+    private final LocalStorage storage;
+    @NotNull
+    private final String self;
+    @NotNull
+    private final Supplier<ConsistentHashRing> ring;
+    @NotNull
+    private final Predicate<String> alive;
+    @NotNull
+    private final RateLimiter limiter;
+    @NotNull
+    private final String treePath;
+    @NotNull
+    private final String rangePath;
+    @NotNull
+    private final String streamPath;
+    private final long interval;
+    @NotNull
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private long round;
+
+    /**
+     * @param ring supplies the current ring or {@code null} while a topology change is in progress
+     */
+    AntiEntropy(@NotNull LocalStorage storage,
+                @NotNull String self,
+                @NotNull Supplier<ConsistentHashRing> ring,
+                @NotNull Predicate<String> alive,
+                @NotNull RateLimiter limiter,
+                @NotNull String treePath,
+                @NotNull String rangePath,
+                @NotNull String streamPath,
+                long interval) {
+        this.storage = storage;
+        this.self = self;
+        this.ring = ring;
+        this.alive = alive;
+        this.limiter = limiter;
+        this.treePath = treePath;
+        this.rangePath = rangePath;
+        this.streamPath = streamPath;
+        this.interval = interval;
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::repairNext, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Serves the tree of the segment as seen by this node for the given peer.
+     */
+    @NotNull
+    byte[] tree(@NotNull String peer, int segment) throws IOException, InterruptedException {
+        ConsistentHashRing current = currentRing();
+        return buildTree(current, peer, segment, false, new long[LEAVES]).toBytes();
+    }
+
+    /**
+     * Serves the entries of the given leaves of the segment shared with the peer.
+     *
+     * @throws IllegalArgumentException if more than a chunk of leaves is asked for
+     */
+    @NotNull
+    Batch range(@NotNull String peer, int segment, @NotNull Set<Integer> leaves)
+            throws IOException, InterruptedException {
+        if (leaves.size() > CHUNK_LEAVES) {
+            throw new IllegalArgumentException("At most " + CHUNK_LEAVES + " leaves are served at once");
+        }
+        ConsistentHashRing current = currentRing();
+        Batch batch = new Batch();
+        scan(current, peer, segment, false, (id, value) -> {
+            if (leaves.contains(leaf(id))) {
+                batch.add(id, value.toBytes());
+            }
+        });
+        return batch;
+    }
+
+    @NotNull
+    static byte[] encodeLeaves(@NotNull Collection<Integer> leaves) {
+        ByteBuffer buffer = ByteBuffer.allocate(leaves.size() * Integer.BYTES);
+        for (int leaf : leaves) {
+            buffer.putInt(leaf);
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    static Set<Integer> decodeLeaves(@NotNull byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Set<Integer> leaves = new HashSet<>();
+        while (buffer.remaining() >= Integer.BYTES) {
+            leaves.add(buffer.getInt());
+        }
+        return leaves;
+    }
+
+    @Nullable
+    static Integer parseSegment(@Nullable String segment) {
+        try {
+            int value = Integer.parseInt(segment);
+            return value >= 0 && value < SEGMENTS ? value : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void repairNext() {
+        ConsistentHashRing current = ring.get();
+        if (current == null) {
+            return;
+        }
+        List<String> peers = new ArrayList<>(current.getNodes());
+        peers.remove(self);
+        if (peers.isEmpty()) {
+            return;
+        }
+        String peer = peers.get((int) (round % peers.size()));
+        int segment = (int) (round / peers.size() % SEGMENTS);
+        round++;
+        if (!alive.test(peer)) {
+            return;
+        }
+
+        try {
+            repair(current, peer, segment);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Repair of segment " + segment + " with " + peer + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void repair(@NotNull ConsistentHashRing current,
+                        @NotNull String peer,
+                        int segment) throws IOException, InterruptedException {
+        String query = "?node=" + Http.encode(self) + "&segment=" + segment;
+        long[] leafBytes = new long[LEAVES];
+        MerkleTree local = buildTree(current, peer, segment, true, leafBytes);
+        long bytes = 0;
+        for (long leaf : leafBytes) {
+            bytes += leaf;
+        }
+        int timeout = (int) Math.min(Integer.MAX_VALUE, TIMEOUT + bytes * 1000 / SCAN_BYTES_PER_SEC);
+        Response tree = Http.request(HttpMethod.GET, peer + treePath + query, null, timeout);
+        if (tree.getCode() != OK) {
+            throw new IOException("Can't get tree from " + peer + ": " + tree.getCode());
+        }
+        List<Integer> diff = local.diff(MerkleTree.fromBytes(tree.getData()));
+        if (diff.isEmpty()) {
+            return;
+        }
+
+        // only the versions of the remote values are kept, to skip pushing what the peer has newer
+        Map<String, Value> remoteVersions = new HashMap<>();
+        int pulled = 0;
+        for (int from = 0; from < diff.size(); from += CHUNK_LEAVES) {
+            List<Integer> chunk = diff.subList(from, Math.min(from + CHUNK_LEAVES, diff.size()));
+            // the size of the peer's values is not known in advance, ours is the estimate
+            long estimate = 0;
+            for (int leaf : chunk) {
+                estimate += leafBytes[leaf];
+            }
+            limiter.acquire(estimate);
+            Response range = Http.request(HttpMethod.POST, peer + rangePath + query, encodeLeaves(chunk), timeout);
+            if (range.getCode() != OK) {
+                throw new IOException("Can't get range from " + peer + ": " + range.getCode());
+            }
+            Batch theirs = range.hasData() ? Batch.fromBytes(range.getData()) : new Batch();
+            if (theirs.sizeInBytes() > estimate) {
+                limiter.acquire(theirs.sizeInBytes() - estimate);
+            }
+            for (Batch.Record record : theirs.getRecords()) {
+                if (record.getData() != null) {
+                    Value value = Value.fromBytes(record.getData());
+                    remoteVersions.put(record.getId(), value.toDigest());
+                    if (storage.apply(record.getId(), value)) {
+                        pulled++;
+                    }
+                }
+            }
+        }
+
+        Set<Integer> leaves = new HashSet<>(diff);
+        Batch[] ours = {new Batch()};
+        int[] pushed = new int[1];
+        scan(current, peer, segment, true, (id, value) -> {
+            Value remote = remoteVersions.get(id);
+            if (leaves.contains(leaf(id)) && (remote == null || value.isNewerThan(remote))) {
+                ours[0].add(id, value.toBytes());
+                pushed[0]++;
+                if (ours[0].sizeInBytes() >= PUSH_BYTES) {
+                    push(peer, ours[0]);
+                    ours[0] = new Batch();
+                }
+            }
+        });
+        push(peer, ours[0]);
+        log.info("Segment " + segment + " with " + peer + ": " + diff.size() + " leaves differ, "
+                + pulled + " values pulled, " + pushed[0] + " pushed");
+    }
+
+    private void push(@NotNull String peer,
+                      @NotNull Batch batch) throws IOException, InterruptedException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        byte[] body = batch.toBytes();
+        limiter.acquire(body.length);
+        if (Http.request(HttpMethod.POST, peer + streamPath, body).getCode() != CREATED) {
+            throw new IOException("Can't push range to " + peer);
+        }
+    }
+
+    /**
+     * @param leafBytes receives the size of the values of every leaf
+     */
+    @NotNull
+    private MerkleTree buildTree(@NotNull ConsistentHashRing current,
+                                 @NotNull String peer,
+                                 int segment,
+                                 boolean throttled,
+                                 @NotNull long[] leafBytes) throws IOException, InterruptedException {
+        long[] leaves = new long[LEAVES];
+        scan(current, peer, segment, throttled, (id, value) -> {
+            int leaf = leaf(id);
+            leaves[leaf] ^= MerkleTree.hashEntry(id, value);
+            leafBytes[leaf] += value.getData().length;
+        });
+        return MerkleTree.build(leaves);
+    }
+
+    /**
+     * @param throttled whether the values shared with the peer are charged to the repair rate
+     */
+    private void scan(@NotNull ConsistentHashRing current,
+                      @NotNull String peer,
+                      int segment,
+                      boolean throttled,
+                      @NotNull EntryConsumer consumer) throws IOException, InterruptedException {
+        try (Stream<String> keys = storage.keys()) {
+            Iterator<String> it = keys.iterator();
+            while (it.hasNext()) {
+                String id = it.next();
+                if (segment(id) != segment) {
+                    continue;
+                }
+                Value value = storage.get(id);
+                if (value == null) {
+                    continue;
+                }
+                List<String> replicas = current.getNodes(id, Math.max(value.getReplicas(), 1));
+                if (replicas.contains(self) && replicas.contains(peer)) {
+                    if (throttled) {
+                        limiter.acquire(value.getData().length);
+                    }
+                    consumer.accept(id, value);
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private ConsistentHashRing currentRing() throws IOException {
+        ConsistentHashRing current = ring.get();
+        if (current == null) {
+            throw new IOException("Topology change is in progress");
+        }
+        return current;
+    }
+
+    private static int segment(@NotNull String id) {
+        return (int) (Hash.hash64(id) >>> (Long.SIZE - SEGMENT_BITS));
+    }
+
+    private static int leaf(@NotNull String id) {
+        return (int) (Hash.hash64(id) >>> (Long.SIZE - SEGMENT_BITS - LEAF_BITS)) & (LEAVES - 1);
+    }
+
+    @FunctionalInterface
+    private interface EntryConsumer {
+        void accept(@NotNull String id, @NotNull Value value) throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,150 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Framed list of {@code (id, bytes)} records used for bulk inner traffic:
+ * {@code [int idLength][id][int dataLength][data]...}, a {@code null} data is encoded as length {@code -1}.
+ */
+final class Batch {
+
+    private final List<Record> records = new ArrayList<>();
+    private int sizeInBytes;
+
+    void add(@NotNull String id, @Nullable byte[] data) {
+        Record record = new Record(id, data);
+        records.add(record);
+        sizeInBytes += record.sizeInBytes();
+    }
+
+    boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    int sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @NotNull
+    List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    @NotNull
+    byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(sizeInBytes);
+        for (Record record : records) {
+            buffer.putInt(record.idBytes.length).put(record.idBytes);
+            if (record.data == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(record.data.length).put(record.data);
+            }
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    static Batch fromBytes(@NotNull byte[] bytes) {
+        try {
+            Batch batch = new Batch();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                byte[] id = slice(buffer, buffer.getInt());
+                int length = buffer.getInt();
+                byte[] data = length == -1 ? null : slice(buffer, length);
+                batch.add(new String(id, StandardCharsets.UTF_8), data);
+            }
+            return batch;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Batch is corrupted");
+        }
+    }
+
+    /**
+     * Lengths come from the wire, they are checked before anything is allocated.
+     */
+    @NotNull
+    private static byte[] slice(@NotNull ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Batch is corrupted");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the next record of a stream of concatenated batches.
+     *
+     * @return the record or {@code null} at the end of the stream
+     */
+    @Nullable
+    static Record read(@NotNull DataInputStream is) throws IOException {
+        int idLength;
+        try {
+            idLength = is.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (idLength < 0) {
+            throw new IOException("Batch is corrupted");
+        }
+        byte[] id = new byte[idLength];
+        is.readFully(id);
+        int length = is.readInt();
+        if (length < -1) {
+            throw new IOException("Batch is corrupted");
+        }
+        byte[] data = null;
+        if (length >= 0) {
+            data = new byte[length];
+            is.readFully(data);
+        }
+        return new Record(new String(id, StandardCharsets.UTF_8), data);
+    }
+
+    static final class Record {
+
+        @NotNull
+        private final String id;
+        @NotNull
+        private final byte[] idBytes;
+        @Nullable
+        private final byte[] data;
+
+        private Record(@NotNull String id, @Nullable byte[] data) {
+            this.id = id;
+            this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+            this.data = data;
+        }
+
+        @NotNull
+        String getId() {
+            return id;
+        }
+
+        @Nullable
+        byte[] getData() {
+            return data;
+        }
+
+        private int sizeInBytes() {
+            return 2 * Integer.BYTES + idBytes.length + (data == null ? 0 : data.length);
+        }
+    }
+}
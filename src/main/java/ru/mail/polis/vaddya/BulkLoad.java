@@ -0,0 +1,123 @@
+package ru.mail.polis.vaddya;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Partitions a key/value dump by replica placement and writes sorted bulk files
+ * into the data directory of every node, to be picked up by {@link Ingest}.
+ * <p>
+ * The dump has one {@code <key>\t<base64 value>} per line. All values get the same timestamp
+ * of the load, so later writes through the cluster win over them.
+ * <p>
+ * Usage: {@code BulkLoad <dump> <from> <node>=<data dir> [<node>=<data dir> ...]}
+ */
+public final class BulkLoad {
+
+    private static final int VNODES = Integer.getInteger("highload.kv.vnodes", 128);
+    private static final long FILE_BYTES = Long.getLong("highload.kv.bulk.file", 64 * 1024 * 1024);
+
+    private BulkLoad() {
+        // Not instantiable
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: BulkLoad <dump> <from> <node>=<data dir> [<node>=<data dir> ...]");
+            System.exit(1);
+        }
+        final int from = Integer.parseInt(args[1]);
+        final Map<String, File> dirs = new LinkedHashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            final int idx = args[i].indexOf('=');
+            if (idx < 0) {
+                throw new IllegalArgumentException("Expected <node>=<data dir>: " + args[i]);
+            }
+            final File dir = new File(args[i].substring(idx + 1), Ingest.DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            dirs.put(args[i].substring(0, idx), dir);
+        }
+        final ConsistentHashRing ring = new ConsistentHashRing(dirs.keySet(), VNODES);
+        if (from < 1 || from > ring.size()) {
+            throw new IllegalArgumentException("Replicas count is invalid");
+        }
+
+        final long timestamp = System.currentTimeMillis() * 1000;
+        final String prefix = "bulk-" + timestamp + "-";
+        final Map<String, Chunk> chunks = new HashMap<>();
+        long keys = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    throw new IllegalArgumentException("Malformed line " + (keys + 1));
+                }
+                final String id = line.substring(0, tab);
+                final byte[] value = Value.present(timestamp, from, Base64.getDecoder().decode(line.substring(tab + 1)))
+                        .toBytes();
+                final List<String> nodes = ring.getNodes(id, from);
+                for (String node : nodes) {
+                    final Chunk chunk = chunks.computeIfAbsent(node, n -> new Chunk());
+                    chunk.add(id, value);
+                    if (chunk.bytes >= FILE_BYTES) {
+                        chunk.flush(dirs.get(node), prefix);
+                    }
+                }
+                keys++;
+            }
+        }
+        for (Map.Entry<String, Chunk> entry : chunks.entrySet()) {
+            entry.getValue().flush(dirs.get(entry.getKey()), prefix);
+        }
+
+        System.out.println(keys + " keys loaded with " + from + " replicas");
+        for (Map.Entry<String, Chunk> entry : chunks.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue().written + " keys in "
+                    + entry.getValue().files + " files");
+        }
+    }
+
+    /**
+     * Values of one node sorted by key until they are flushed into a bulk file.
+     */
+    private static final class Chunk {
+
+        private final Map<String, byte[]> values = new TreeMap<>();
+        private long bytes;
+        private long written;
+        private int files;
+
+        private void add(String id, byte[] value) {
+            values.put(id, value);
+            bytes += id.length() + value.length;
+        }
+
+        private void flush(File dir, String prefix) throws IOException {
+            if (values.isEmpty()) {
+                return;
+            }
+            final Batch batch = new Batch();
+            values.forEach(batch::add);
+            Ingest.write(dir, prefix + String.format("%06d", files), batch);
+            written += values.size();
+            files++;
+            values.clear();
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Write-through LRU cache of values limited by their total size and by the room left in {@code memory},
+ * the least recently used values are evicted when either runs out.
+ * <p>
+ * A value read from the underlying DAO is cached only if no write happened meanwhile,
+ * otherwise a read racing with a write could put the old value back.
+ */
+final class CachingDAO implements DAO {
+
+    @NotNull
+    private final DAO dao;
+    private final long budget;
+    @NotNull
+    private final MemoryBudget.Component memory;
+    @NotNull
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    @NotNull
+    private final AtomicLong writes = new AtomicLong();
+    @NotNull
+    private final LongAdder hits;
+    @NotNull
+    private final LongAdder misses;
+    private long size;
+
+    CachingDAO(@NotNull DAO dao,
+               long budget,
+               @NotNull MemoryBudget.Component memory,
+               @NotNull LongAdder hits,
+               @NotNull LongAdder misses) {
+        this.dao = dao;
+        this.budget = budget;
+        this.memory = memory;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException {
+        synchronized (cache) {
+            byte[] value = cache.get(id);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+        }
+        misses.increment();
+        long before = writes.get();
+        byte[] value = dao.get(id);
+        synchronized (cache) {
+            if (writes.get() == before) {
+                put(id, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void upsert(@NotNull String id, @NotNull byte[] value) throws IllegalArgumentException, IOException {
+        writes.incrementAndGet();
+        boolean written = false;
+        try {
+            dao.upsert(id, value);
+            written = true;
+        } finally {
+            synchronized (cache) {
+                writes.incrementAndGet();
+                if (written) {
+                    put(id, value);
+                } else {
+                    remove(id);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void delete(@NotNull String id) throws IllegalArgumentException, IOException {
+        writes.incrementAndGet();
+        try {
+            dao.delete(id);
+        } finally {
+            synchronized (cache) {
+                writes.incrementAndGet();
+                remove(id);
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public Stream<String> keys() throws IOException {
+        return dao.keys();
+    }
+
+    long size() {
+        synchronized (cache) {
+            return size;
+        }
+    }
+
+    private void put(@NotNull String id, @NotNull byte[] value) {
+        remove(id);
+        if (value.length > budget) {
+            return;
+        }
+        Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+        while (size + value.length > budget || !memory.tryReserveQuietly(value.length)) {
+            if (!it.hasNext()) {
+                return;
+            }
+            evict(it);
+        }
+        cache.put(id, value);
+        size += value.length;
+    }
+
+    private void evict(@NotNull Iterator<Map.Entry<String, byte[]>> it) {
+        int length = it.next().getValue().length;
+        it.remove();
+        size -= length;
+        memory.release(length);
+    }
+
+    private void remove(@NotNull String id) {
+        byte[] old = cache.remove(id);
+        if (old != null) {
+            size -= old.length;
+            memory.release(old.length);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Stores values of at least {@link Compression#MIN_BYTES} deflated, others as is,
+ * behind a one-byte header telling which.
+ */
+final class CompressingDAO implements DAO {
+
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+
+    @NotNull
+    private final DAO dao;
+
+    CompressingDAO(@NotNull DAO dao) {
+        this.dao = dao;
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException {
+        byte[] stored = dao.get(id);
+        if (stored.length == 0) {
+            throw new IllegalArgumentException("Value is corrupted");
+        }
+        byte[] value = Arrays.copyOfRange(stored, 1, stored.length);
+        if (stored[0] == PLAIN) {
+            return value;
+        }
+        return Http.readData(Compression.decode(new ByteArrayInputStream(value), Compression.DEFLATE));
+    }
+
+    @Override
+    public void upsert(@NotNull String id, @NotNull byte[] value) throws IllegalArgumentException, IOException {
+        boolean deflate = value.length >= Compression.MIN_BYTES;
+        byte[] data = deflate ? Compression.encode(value, Compression.DEFLATE) : value;
+        byte[] stored = new byte[data.length + 1];
+        stored[0] = deflate ? DEFLATED : PLAIN;
+        System.arraycopy(data, 0, stored, 1, data.length);
+        dao.upsert(id, stored);
+    }
+
+    @Override
+    public void delete(@NotNull String id) throws IllegalArgumentException, IOException {
+        dao.delete(id);
+    }
+
+    @NotNull
+    @Override
+    public Stream<String> keys() throws IOException {
+        return dao.keys();
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@code Content-Encoding} support: {@code gzip} and {@code deflate} (zlib).
+ * <p>
+ * Bodies below {@code highload.kv.compression.min} bytes are sent as is, they hardly shrink and the
+ * headers cost more. Inner requests are compressed only with {@code highload.kv.compression.inner},
+ * any node decodes compressed bodies regardless.
+ */
+final class Compression {
+
+    static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final int MIN_BYTES = Integer.getInteger("highload.kv.compression.min", 1024);
+    static final boolean INNER = Boolean.getBoolean("highload.kv.compression.inner");
+
+    private static final String IDENTITY = "identity";
+    private static final String ANY = "*";
+
+    private Compression() {
+        // Not instantiable
+    }
+
+    /**
+     * {@code *} stands for the codings not listed explicitly, e.g. {@code gzip;q=0, *} rules out only gzip.
+     *
+     * @return the encoding to use for the body, or {@code null} to send it as is
+     */
+    @Nullable
+    static String negotiate(@Nullable String acceptEncoding, int length) {
+        if (acceptEncoding == null || length < MIN_BYTES) {
+            return null;
+        }
+        Map<String, Double> qualities = new HashMap<>();
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            qualities.put(parts[0].trim().toLowerCase(Locale.ROOT), quality);
+        }
+        double any = qualities.getOrDefault(ANY, 0.0);
+        double gzip = qualities.getOrDefault(GZIP, any);
+        double deflate = qualities.getOrDefault(DEFLATE, any);
+        // gzip wins ties, it is what most clients mean
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    @NotNull
+    static byte[] encode(@NotNull byte[] data, @NotNull String encoding) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream os = encoding.equals(GZIP) ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+            os.write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't compress in memory", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @NotNull
+    static InputStream decode(@NotNull InputStream is, @Nullable String encoding) throws IOException {
+        if (encoding == null || encoding.equalsIgnoreCase(IDENTITY)) {
+            return is;
+        } else if (encoding.equalsIgnoreCase(GZIP)) {
+            return new GZIPInputStream(is);
+        } else if (encoding.equalsIgnoreCase(DEFLATE)) {
+            return new InflaterInputStream(is);
+        }
+        throw new IllegalArgumentException("Content encoding " + encoding + " is not supported");
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.vaddya;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit of requests in flight, AIMD on observed latency.
+ * <p>
+ * The limit grows by one per {@code limit} requests finished while the smoothed latency stays within
+ * {@code tolerance} times the lowest latency seen, and is cut by {@code backoff} at most once per smoothed
+ * latency when it doesn't. The lowest latency slowly drifts up, so a lasting change of the baseline
+ * is picked up.
+ */
+final class ConcurrencyLimiter {
+
+    private static final long LATENCY_FLOOR = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final double BASELINE_DRIFT = 1.001;
+    private static final double SMOOTHING = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+    private final AtomicInteger inflight = new AtomicInteger();
+    private volatile double limit;
+    private double minLatency = Double.MAX_VALUE;
+    private double latency;
+    private long lastDecrease;
+
+    ConcurrencyLimiter(int initialLimit,
+                       int minLimit,
+                       int maxLimit,
+                       double tolerance,
+                       double backoff) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits are invalid");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+    }
+
+    /**
+     * @return {@code true} if the request is admitted and {@link #release(long)} must follow
+     */
+    boolean tryAcquire() {
+        int max = (int) limit;
+        for (int current; (current = inflight.get()) < max; ) {
+            if (inflight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void release(long latencyNanos) {
+        int current = inflight.getAndDecrement();
+        update(latencyNanos, current);
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInflight() {
+        return inflight.get();
+    }
+
+    private synchronized void update(long sample, int inflight) {
+        minLatency = Math.min(sample, minLatency * BASELINE_DRIFT);
+        latency = latency == 0 ? sample : latency + SMOOTHING * (sample - latency);
+        if (latency > LATENCY_FLOOR && latency > minLatency * tolerance) {
+            long now = System.nanoTime();
+            if (now - lastDecrease > latency) {
+                limit = Math.max(minLimit, limit * backoff);
+                lastDecrease = now;
+            }
+        } else if (2 * inflight >= limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring with {@code vnodes} virtual nodes per endpoint.
+ * <p>
+ * Replicas of a key are the distinct endpoints met while walking the ring clockwise
+ * from the key token, so the replica set for a smaller {@code from} is always
+ * a prefix of the one for a larger {@code from}.
+ */
+final class ConsistentHashRing {
+
+    @NotNull
+    private final List<String> nodes;
+    private final int vnodes;
+    @NotNull
+    private final long[] tokens;
+    @NotNull
+    private final int[] owners;
+
+    ConsistentHashRing(@NotNull Collection<String> nodes, int vnodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Topology is empty");
+        }
+        if (vnodes < 1) {
+            throw new IllegalArgumentException("Virtual nodes count must be positive");
+        }
+
+        List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+        this.vnodes = vnodes;
+
+        long[] points = new long[sorted.size() * vnodes];
+        for (int n = 0; n < sorted.size(); n++) {
+            for (int v = 0; v < vnodes; v++) {
+                points[n * vnodes + v] = Hash.hash64(sorted.get(n) + "#" + v);
+            }
+        }
+        Integer[] order = new Integer[points.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // ties are broken by owner, so every node builds exactly the same ring
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Long.compare(points[a], points[b]);
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+
+        this.tokens = new long[points.length];
+        this.owners = new int[points.length];
+        for (int i = 0; i < order.length; i++) {
+            tokens[i] = points[order[i]];
+            owners[i] = order[i] / vnodes;
+        }
+    }
+
+    @NotNull
+    List<String> getNodes(@NotNull String id, int count) {
+        return getNodes(Hash.hash64(id), count);
+    }
+
+    @NotNull
+    List<String> getNodes(long token, int count) {
+        int limit = Math.min(count, nodes.size());
+        List<String> result = new ArrayList<>(limit);
+        boolean[] seen = new boolean[nodes.size()];
+        for (int i = firstIndex(token); result.size() < limit; i = (i + 1) % tokens.length) {
+            int owner = owners[i];
+            if (!seen[owner]) {
+                seen[owner] = true;
+                result.add(nodes.get(owner));
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    List<String> getNodes() {
+        return nodes;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    int getVnodes() {
+        return vnodes;
+    }
+
+    private int firstIndex(long token) {
+        int idx = Arrays.binarySearch(tokens, token);
+        if (idx < 0) {
+            idx = -idx - 1;
+        } else {
+            while (idx > 0 && tokens[idx - 1] == token) {
+                idx--;
+            }
+        }
+        return idx == tokens.length ? 0 : idx;
+    }
+}
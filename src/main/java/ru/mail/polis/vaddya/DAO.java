@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.util.NoSuchElementException;
+import java.util.stream.Stream;
 
 public interface DAO {
 
@@ -14,4 +15,10 @@ public interface DAO {
 
     void delete(@NotNull String id) throws IllegalArgumentException, IOException;
 
+    /**
+     * Lists all stored IDs. The stream must be closed by the caller.
+     */
+    @NotNull
+    Stream<String> keys() throws IOException;
+
 }
@@ -6,14 +6,30 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.NoSuchElementException;
+import java.util.stream.Stream;
 
+/**
+ * One file per key. A value is never rewritten in place: it is written to a temporary file
+ * which then replaces the old one, so every version is a new immutable file
+ * and hard links to it (see {@link Snapshots}) stay intact.
+ */
 public class DAOImpl implements DAO {
 
+    private static final String TMP_SUFFIX = ".tmp";
+
     private final String dir;
+    private final Path tmp;
 
-    public DAOImpl(String dir) {
+    public DAOImpl(String dir) throws IOException {
         this.dir = dir;
+        this.tmp = Files.createDirectories(Paths.get(dir + TMP_SUFFIX));
+        try (Stream<Path> leftovers = Files.list(tmp)) {
+            for (Path file : (Iterable<Path>) leftovers::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
     }
 
     private Path getPath(String id) {
@@ -35,7 +51,13 @@ public class DAOImpl implements DAO {
 
     @Override
     public void upsert(@NotNull String id, @NotNull byte[] value) throws IllegalArgumentException, IOException {
-        Files.write(getPath(id), value);
+        Path file = Files.createTempFile(tmp, null, null);
+        try {
+            Files.write(file, value);
+            Files.move(file, getPath(id), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(file);
+        }
     }
 
     @Override
@@ -43,4 +65,12 @@ public class DAOImpl implements DAO {
         Files.deleteIfExists(getPath(id));
     }
 
+    @NotNull
+    @Override
+    public Stream<String> keys() throws IOException {
+        return Files.list(Paths.get(dir))
+                .filter(Files::isRegularFile)
+                .map(path -> path.getFileName().toString());
+    }
+
 }
@@ -0,0 +1,91 @@
+package ru.mail.polis.vaddya;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Custom Flight Recorder events of the storage, enabled with the usual JFR settings,
+ * e.g. {@code -XX:StartFlightRecording}. Uncommitted events cost next to nothing.
+ */
+final class Events {
+
+    private Events() {
+        // Not instantiable
+    }
+
+    @Name("ru.mail.polis.kv.FanOut")
+    @Label("Coordinator Fan-Out")
+    @Category("KV Storage")
+    @Description("Entity request sent to the replicas until enough of them have answered")
+    static final class FanOut extends Event {
+
+        @Label("Method")
+        String method;
+
+        @Label("ID")
+        String id;
+
+        @Label("Ack")
+        int ack;
+
+        @Label("From")
+        int from;
+
+        @Label("Successful Replies")
+        int replies;
+    }
+
+    @Name("ru.mail.polis.kv.InnerCall")
+    @Label("Inner Call")
+    @Category("KV Storage")
+    @Description("Request to another node of the cluster")
+    static final class InnerCall extends Event {
+
+        @Label("Node")
+        String node;
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Records")
+        int records;
+
+        @Label("Status")
+        int status;
+    }
+
+    @Name("ru.mail.polis.kv.ResponseWrite")
+    @Label("Response Write")
+    @Category("KV Storage")
+    @Description("Response headers and body written to the client")
+    static final class ResponseWrite extends Event {
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Bytes")
+        int bytes;
+    }
+
+    @Name("ru.mail.polis.kv.Dao")
+    @Label("DAO Operation")
+    @Category("KV Storage")
+    @Description("Operation of the local DAO")
+    static final class Dao extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("ID")
+        String id;
+    }
+}
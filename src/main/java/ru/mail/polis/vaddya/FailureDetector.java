@@ -0,0 +1,89 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static ru.mail.polis.vaddya.Response.OK;
+
+/**
+ * Periodically probes {@code /v0/status} of every peer.
+ * <p>
+ * The listener is notified after every successful probe, so that work queued for a node
+ * which blinked between two probes is not lost.
+ */
+class FailureDetector {
+
+    private static final Logger log = Logger.getLogger(FailureDetector.class.getName());
+
+    @NotNull
+    private final String self;
+    @NotNull
+    private final Supplier<Collection<String>> nodes;
+    @NotNull
+    private final String statusPath;
+    private final long interval;
+    @NotNull
+    private final Consumer<String> onAlive;
+    @NotNull
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+    @NotNull
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    FailureDetector(@NotNull String self,
+                    @NotNull Supplier<Collection<String>> nodes,
+                    @NotNull String statusPath,
+                    long interval,
+                    @NotNull Consumer<String> onAlive) {
+        this.self = self;
+        this.nodes = nodes;
+        this.statusPath = statusPath;
+        this.interval = interval;
+        this.onAlive = onAlive;
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::probe, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    boolean isAlive(@NotNull String node) {
+        return !down.contains(node);
+    }
+
+    /**
+     * Marks the node as down until the next successful probe.
+     */
+    void suspect(@NotNull String node) {
+        if (down.add(node)) {
+            log.info(node + " is suspected to be down");
+        }
+    }
+
+    private void probe() {
+        for (String node : nodes.get()) {
+            if (node.equals(self)) {
+                continue;
+            }
+            if (Http.request(HttpMethod.GET, node + statusPath, null, (int) interval).getCode() == OK) {
+                if (down.remove(node)) {
+                    log.info(node + " is up");
+                }
+                onAlive.accept(node);
+            } else {
+                suspect(node);
+            }
+        }
+    }
+}
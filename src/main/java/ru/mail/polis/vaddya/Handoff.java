@@ -0,0 +1,141 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static ru.mail.polis.vaddya.Response.CREATED;
+
+/**
+ * Streams local keys whose replica set changes between two rings to their new owners
+ * and drops the local copies this node no longer owns.
+ */
+class Handoff {
+
+    private static final Logger log = Logger.getLogger(Handoff.class.getName());
+
+    private static final int BATCH_BYTES = 1024 * 1024;
+    private static final int ATTEMPTS = 3;
+
+    @NotNull
+    private final LocalStorage storage;
+    @NotNull
+    private final String self;
+    @NotNull
+    private final ConsistentHashRing source;
+    @NotNull
+    private final ConsistentHashRing target;
+    @NotNull
+    private final RateLimiter limiter;
+    @NotNull
+    private final String streamPath;
+
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final Set<String> failed = new HashSet<>();
+    private final List<Removal> removals = new ArrayList<>();
+    private long streamed;
+
+    Handoff(@NotNull LocalStorage storage,
+            @NotNull String self,
+            @NotNull ConsistentHashRing source,
+            @NotNull ConsistentHashRing target,
+            @NotNull RateLimiter limiter,
+            @NotNull String streamPath) {
+        this.storage = storage;
+        this.self = self;
+        this.source = source;
+        this.target = target;
+        this.limiter = limiter;
+        this.streamPath = streamPath;
+    }
+
+    void run() throws IOException, InterruptedException {
+        log.info("Handoff from " + source.getNodes() + " to " + target.getNodes() + " started");
+        try (Stream<String> keys = storage.keys()) {
+            Iterator<String> it = keys.iterator();
+            while (it.hasNext()) {
+                String id = it.next();
+                Value value = storage.get(id);
+                if (value != null) {
+                    process(id, value);
+                }
+            }
+        }
+        for (String node : new ArrayList<>(batches.keySet())) {
+            flush(node);
+        }
+        for (Removal removal : removals) {
+            if (Collections.disjoint(failed, removal.targets)) {
+                storage.remove(removal.id, removal.timestamp);
+            }
+        }
+        log.info("Handoff finished: " + streamed + " values streamed, failed nodes " + failed);
+    }
+
+    private void process(@NotNull String id, @NotNull Value value) throws InterruptedException {
+        int replicas = Math.max(value.getReplicas(), 1);
+        List<String> before = source.getNodes(id, replicas);
+        List<String> after = target.getNodes(id, replicas);
+
+        List<String> targets = new ArrayList<>();
+        for (String node : after) {
+            if (!before.contains(node) && !node.equals(self)) {
+                targets.add(node);
+            }
+        }
+        byte[] bytes = value.toBytes();
+        for (String node : targets) {
+            Batch batch = batches.computeIfAbsent(node, n -> new Batch());
+            batch.add(id, bytes);
+            if (batch.sizeInBytes() >= BATCH_BYTES) {
+                flush(node);
+            }
+        }
+        if (!after.contains(self)) {
+            removals.add(new Removal(id, value.getTimestamp(), targets.isEmpty() ? Collections.emptyList() : targets));
+        }
+    }
+
+    private void flush(@NotNull String node) throws InterruptedException {
+        Batch batch = batches.remove(node);
+        if (batch == null || batch.isEmpty() || failed.contains(node)) {
+            return;
+        }
+        byte[] body = batch.toBytes();
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            limiter.acquire(body.length);
+            if (Http.request(HttpMethod.POST, node + streamPath, body).getCode() == CREATED) {
+                streamed += batch.size();
+                return;
+            }
+        }
+        log.warning("Can't stream to " + node + ", leaving its ranges to repair");
+        failed.add(node);
+    }
+
+    /**
+     * A copy to drop, the timestamp is enough to tell if it was overwritten meanwhile.
+     */
+    private static final class Removal {
+
+        private final String id;
+        private final long timestamp;
+        private final List<String> targets;
+
+        private Removal(String id, long timestamp, List<String> targets) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.targets = targets;
+        }
+    }
+}
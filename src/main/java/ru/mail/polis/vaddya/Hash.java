@@ -0,0 +1,41 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+final class Hash {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hash() {
+        // Not instantiable
+    }
+
+    static long hash64(@NotNull String s) {
+        return hash64(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * FNV-1a followed by the MurmurHash3 finalizer, so that similar keys
+     * (e.g. {@code key1}, {@code key2}) spread over the whole 64-bit space.
+     */
+    static long hash64(@NotNull byte[] bytes) {
+        long h = FNV_OFFSET;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+        return mix64(h);
+    }
+
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,146 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static ru.mail.polis.vaddya.Response.CREATED;
+
+/**
+ * Keeps writes for unreachable replicas in per-node append-only logs of {@link Batch} records
+ * and replays them in throttled batches once the node is alive again.
+ * <p>
+ * Before a replay the log is renamed, so new hints go to a fresh file. The renamed log is
+ * deleted only after it is fully delivered; a partial replay is simply repeated later,
+ * which is safe because replicas apply only newer values.
+ */
+class HintedHandoff {
+
+    private static final Logger log = Logger.getLogger(HintedHandoff.class.getName());
+
+    private static final String LOG_SUFFIX = ".hints";
+    private static final String REPLAY_SUFFIX = ".replay";
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    @NotNull
+    private final File dir;
+    @NotNull
+    private final RateLimiter limiter;
+    @NotNull
+    private final String streamPath;
+    @NotNull
+    private final Set<String> replaying = ConcurrentHashMap.newKeySet();
+    @NotNull
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    HintedHandoff(@NotNull File dir,
+                  @NotNull RateLimiter limiter,
+                  @NotNull String streamPath) {
+        this.dir = dir;
+        this.limiter = limiter;
+        this.streamPath = streamPath;
+    }
+
+    void hint(@NotNull String node,
+              @NotNull String id,
+              @NotNull byte[] value) {
+        Batch batch = new Batch();
+        batch.add(id, value);
+        synchronized (this) {
+            try (OutputStream os = new FileOutputStream(file(node, LOG_SUFFIX), true)) {
+                os.write(batch.toBytes());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Can't store hint for " + node, e);
+            }
+        }
+    }
+
+    /**
+     * Schedules delivery of the hints stored for the node, if there are any and no replay is running.
+     */
+    void replay(@NotNull String node) {
+        if (!file(node, LOG_SUFFIX).exists() && !file(node, REPLAY_SUFFIX).exists()) {
+            return;
+        }
+        if (replaying.add(node)) {
+            executor.execute(() -> {
+                try {
+                    deliver(node);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Hint replay to " + node + " failed", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    replaying.remove(node);
+                }
+            });
+        }
+    }
+
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    private void deliver(@NotNull String node) throws IOException, InterruptedException {
+        File replay = file(node, REPLAY_SUFFIX);
+        synchronized (this) {
+            File hints = file(node, LOG_SUFFIX);
+            if (!replay.exists() && hints.exists() && !hints.renameTo(replay)) {
+                throw new IOException("Can't rename " + hints);
+            }
+        }
+        if (!replay.exists()) {
+            return;
+        }
+
+        long delivered = 0;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(replay)))) {
+            Batch batch = new Batch();
+            for (Batch.Record record; (record = Batch.read(is)) != null; ) {
+                batch.add(record.getId(), record.getData());
+                if (batch.sizeInBytes() >= BATCH_BYTES) {
+                    send(node, batch);
+                    delivered += batch.size();
+                    batch = new Batch();
+                }
+            }
+            if (!batch.isEmpty()) {
+                send(node, batch);
+                delivered += batch.size();
+            }
+        }
+        if (!replay.delete()) {
+            throw new IOException("Can't delete " + replay);
+        }
+        log.info(delivered + " hints delivered to " + node);
+    }
+
+    private void send(@NotNull String node, @NotNull Batch batch) throws IOException, InterruptedException {
+        byte[] body = batch.toBytes();
+        limiter.acquire(body.length);
+        if (Http.request(HttpMethod.POST, node + streamPath, body).getCode() != CREATED) {
+            throw new IOException("Node " + node + " rejected hints");
+        }
+    }
+
+    private File file(@NotNull String node, @NotNull String suffix) {
+        try {
+            return new File(dir, URLEncoder.encode(node, "UTF-8") + suffix);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Node is invalid: " + node);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Streaming heavy-hitter tracker: a count-min sketch over a sliding window plus a small set of candidate keys.
+ * <p>
+ * The window consists of {@code slots} sketches, the oldest one is cleared and reused when time moves on.
+ * A key becomes a candidate once its estimate reaches the smallest estimate of the current top,
+ * so a recorded key costs a few atomic adds and, for keys which are not hot, no allocation.
+ * Candidates are trimmed back to the top when there are too many of them.
+ */
+final class HotKeys {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int CANDIDATES_PER_TOP = 8;
+
+    private final int top;
+    private final long slotMillis;
+    private final AtomicLongArray[] slots;
+    private final AtomicLong epoch = new AtomicLong();
+    private final Map<String, Boolean> candidates = new ConcurrentHashMap<>();
+    private final ReentrantLock trimLock = new ReentrantLock();
+    private volatile long threshold;
+
+    /**
+     * @param top          how many keys to track
+     * @param windowMillis length of the sliding window
+     * @param slots        number of sketches the window is split into
+     */
+    HotKeys(int top, long windowMillis, int slots) {
+        this.top = top;
+        this.slotMillis = windowMillis / slots;
+        this.slots = new AtomicLongArray[slots];
+        for (int i = 0; i < slots; i++) {
+            this.slots[i] = new AtomicLongArray(DEPTH * WIDTH);
+        }
+        this.epoch.set(System.currentTimeMillis() / slotMillis);
+    }
+
+    void record(@NotNull String id, long amount) {
+        if (amount <= 0) {
+            return;
+        }
+        AtomicLongArray slot = rotate();
+        long hash = Hash.hash64(id);
+        for (int row = 0; row < DEPTH; row++) {
+            slot.addAndGet(cell(hash, row), amount);
+        }
+        if (!candidates.containsKey(id) && estimate(hash) >= threshold) {
+            candidates.put(id, Boolean.TRUE);
+            if (candidates.size() > CANDIDATES_PER_TOP * top && trimLock.tryLock()) {
+                try {
+                    trim();
+                } finally {
+                    trimLock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the hottest keys with their estimated amounts over the window, the hottest first
+     */
+    @NotNull
+    List<Map.Entry<String, Long>> top() {
+        rotate();
+        List<Map.Entry<String, Long>> result = new ArrayList<>(candidates.size());
+        for (String id : candidates.keySet()) {
+            long estimate = estimate(Hash.hash64(id));
+            if (estimate > 0) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(id, estimate));
+            }
+        }
+        result.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        return result.size() > top ? new ArrayList<>(result.subList(0, top)) : result;
+    }
+
+    long getWindowMillis() {
+        return slotMillis * slots.length;
+    }
+
+    private void trim() {
+        List<Map.Entry<String, Long>> hottest = top();
+        candidates.keySet().retainAll(hottest.stream().map(Map.Entry::getKey).collect(Collectors.toSet()));
+        threshold = hottest.size() < top ? 0 : hottest.get(hottest.size() - 1).getValue();
+    }
+
+    /**
+     * Clears the slots which fell out of the window since the last call.
+     */
+    @NotNull
+    private AtomicLongArray rotate() {
+        long now = System.currentTimeMillis() / slotMillis;
+        long last = epoch.get();
+        if (now > last && epoch.compareAndSet(last, now)) {
+            for (long e = Math.max(last + 1, now - slots.length + 1); e <= now; e++) {
+                AtomicLongArray slot = slots[(int) (e % slots.length)];
+                for (int i = 0; i < slot.length(); i++) {
+                    slot.lazySet(i, 0);
+                }
+            }
+            // candidates are admitted again against the new window
+            threshold = 0;
+        }
+        return slots[(int) (now % slots.length)];
+    }
+
+    private long estimate(long hash) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int cell = cell(hash, row);
+            long sum = 0;
+            for (AtomicLongArray slot : slots) {
+                sum += slot.get(cell);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * Double hashing, see Kirsch and Mitzenmacher "Less Hashing, Same Performance".
+     */
+    private static int cell(long hash, int row) {
+        int h = (int) hash + row * (int) (hash >>> 32);
+        return row * WIDTH + (h & (WIDTH - 1));
+    }
+}
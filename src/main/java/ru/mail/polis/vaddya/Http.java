@@ -0,0 +1,137 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+final class Http {
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final int TIMEOUT = Integer.getInteger("highload.kv.timeout", 5000);
+
+    private Http() {
+        // Not instantiable
+    }
+
+    @NotNull
+    static byte[] readData(@NotNull InputStream is) throws IOException {
+        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int len; (len = is.read(buffer, 0, BUFFER_SIZE)) != -1; ) {
+                os.write(buffer, 0, len);
+            }
+            os.flush();
+            return os.toByteArray();
+        }
+    }
+
+    /**
+     * Reads exactly {@code length} bytes without intermediate buffers.
+     */
+    @NotNull
+    static byte[] readData(@NotNull InputStream is, int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int read = 0, len; read < length; read += len) {
+            if ((len = is.read(data, read, length - read)) < 0) {
+                throw new EOFException("Body is shorter than " + length + " bytes");
+            }
+        }
+        return data;
+    }
+
+    @NotNull
+    static String encode(@NotNull String param) {
+        try {
+            return URLEncoder.encode(param, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Parameter is invalid");
+        }
+    }
+
+    /**
+     * Compares entity tags as RFC 7232 requires: {@code If-Match} strongly, a weak tag never matches,
+     * and {@code If-None-Match} weakly, ignoring the {@code W/} prefix.
+     *
+     * @param header value of {@code If-Match} or {@code If-None-Match}: {@code *} or a list of entity tags
+     * @param etag   strong entity tag of the current version
+     */
+    static boolean matches(@NotNull String header,
+                           @NotNull String etag,
+                           boolean weak) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || weak && tag.startsWith("W/") && tag.substring(2).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    static Response request(@NotNull HttpMethod method,
+                            @NotNull String link,
+                            @Nullable byte[] data) {
+        return request(method, link, data, TIMEOUT);
+    }
+
+    /**
+     * The response is always read to the end, so the connection is kept alive
+     * and reused by {@link HttpURLConnection} for the next request to the node.
+     * Bodies are compressed if {@link Compression#INNER} is on.
+     */
+    @NotNull
+    static Response request(@NotNull HttpMethod method,
+                            @NotNull String link,
+                            @Nullable byte[] data,
+                            int timeout) {
+        HttpURLConnection conn = null;
+        try {
+            URL url = new URL(link);
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod(method.toString());
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            conn.setDoOutput(data != null);
+            if (Compression.INNER) {
+                conn.setRequestProperty(Compression.HEADER_ACCEPT_ENCODING, Compression.GZIP);
+                if (data != null && data.length >= Compression.MIN_BYTES) {
+                    conn.setRequestProperty(Compression.HEADER_CONTENT_ENCODING, Compression.GZIP);
+                    data = Compression.encode(data, Compression.GZIP);
+                }
+            }
+            conn.connect();
+
+            if (data != null) {
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(data);
+                    os.flush();
+                }
+            }
+
+            int code = conn.getResponseCode();
+            InputStream body = code / 100 == 2 ? conn.getInputStream() : conn.getErrorStream();
+            byte[] inputData = new byte[0];
+            if (body != null) {
+                try (InputStream is = Compression.decode(body, conn.getContentEncoding())) {
+                    inputData = readData(is);
+                }
+            }
+            if (code / 100 == 2 && (inputData.length > 0 || method == HttpMethod.GET)) {
+                return new Response(code, inputData);
+            }
+            return new Response(code);
+        } catch (IOException e) {
+            if (conn != null) conn.disconnect();
+            return Response.unreachable();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package ru.mail.polis.vaddya;
+
+enum HttpMethod {
+
+    GET,
+    PUT,
+    POST,
+    DELETE
+
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Bulk files of {@link Batch} records with {@link Value}s, prepared offline by {@link BulkLoad}
+ * in the {@code ingest} directory of a node and applied to its storage bypassing the write path.
+ * <p>
+ * A file is written under a temporary name and renamed when complete, so a node never sees
+ * a partial file. It is deleted after all its records are applied; an interrupted ingest
+ * is simply repeated, which is safe because only newer values are applied.
+ */
+class Ingest {
+
+    private static final Logger log = Logger.getLogger(Ingest.class.getName());
+
+    static final String DIR = "ingest";
+
+    private static final String SUFFIX = ".batch";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @NotNull
+    private final File dir;
+    @NotNull
+    private final LocalStorage storage;
+
+    Ingest(@NotNull File dir, @NotNull LocalStorage storage) {
+        this.dir = dir;
+        this.storage = storage;
+    }
+
+    /**
+     * Applies all complete bulk files in the order of their names.
+     *
+     * @return the number of records applied
+     */
+    synchronized long run() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("Can't list " + dir);
+        }
+        Arrays.sort(files);
+
+        long applied = 0;
+        for (File file : files) {
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                for (Batch.Record record; (record = Batch.read(is)) != null; ) {
+                    if (record.getData() != null && storage.apply(record.getId(), Value.fromBytes(record.getData()))) {
+                        applied++;
+                    }
+                }
+            }
+            Files.delete(file.toPath());
+            log.info("Ingested " + file.getName());
+        }
+        return applied;
+    }
+
+    /**
+     * Writes the batch as a complete bulk file {@code name} in the ingest directory {@code dir}.
+     */
+    static void write(@NotNull File dir,
+                      @NotNull String name,
+                      @NotNull Batch batch) throws IOException {
+        File tmp = new File(dir, name + TMP_SUFFIX);
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(batch.toBytes());
+            os.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, name + SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
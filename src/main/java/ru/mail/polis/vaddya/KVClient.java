@@ -0,0 +1,180 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static ru.mail.polis.vaddya.HttpMethod.*;
+import static ru.mail.polis.vaddya.Response.*;
+
+/**
+ * Token-aware client which sends every request straight to a replica of the key,
+ * so the coordinator serves its part locally and there is no proxy hop.
+ * <p>
+ * The placement is the same {@link ConsistentHashRing} the nodes use, thus {@code vnodes}
+ * must match {@code highload.kv.vnodes} of the cluster. Connections are kept alive and pooled
+ * by {@link HttpURLConnection} (see {@code http.maxConnections}).
+ * If a replica is unreachable, the next one of the key's replica set is tried.
+ */
+public final class KVClient {
+
+    private static final String URL_ENTITY = "/v0/entity";
+    private static final String URL_ADMIN_TOPOLOGY = "/v0/admin/topology";
+    private static final String PENDING = "pending:";
+    private static final int DEFAULT_VNODES = Integer.getInteger("highload.kv.vnodes", 128);
+    private static final int TIMEOUT = Integer.getInteger("highload.kv.timeout", 5000);
+
+    private final int vnodes;
+    @NotNull
+    private volatile ConsistentHashRing ring;
+
+    public KVClient(@NotNull Collection<String> topology) {
+        this(topology, DEFAULT_VNODES);
+    }
+
+    public KVClient(@NotNull Collection<String> topology, int vnodes) {
+        this.vnodes = vnodes;
+        this.ring = new ConsistentHashRing(topology, vnodes);
+    }
+
+    /**
+     * Creates a client for the cluster the {@code seed} node belongs to.
+     */
+    @NotNull
+    public static KVClient connect(@NotNull String seed) throws IOException {
+        return new KVClient(fetchTopology(seed));
+    }
+
+    /**
+     * Reloads the topology from any reachable node, e.g. after the cluster was resized.
+     */
+    public void refreshTopology() throws IOException {
+        IOException error = null;
+        for (String node : ring.getNodes()) {
+            try {
+                ring = new ConsistentHashRing(fetchTopology(node), vnodes);
+                return;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    @NotNull
+    public List<String> getTopology() {
+        return ring.getNodes();
+    }
+
+    /**
+     * @return the value or {@code null} if there is no such key
+     */
+    @Nullable
+    public byte[] get(@NotNull String id) throws IOException {
+        return get(id, null);
+    }
+
+    @Nullable
+    public byte[] get(@NotNull String id, @Nullable String replicas) throws IOException {
+        Response resp = execute(GET, id, replicas, null);
+        if (resp.getCode() == NOT_FOUND) {
+            return null;
+        }
+        check(resp, OK);
+        return resp.getData();
+    }
+
+    public void put(@NotNull String id, @NotNull byte[] value) throws IOException {
+        put(id, value, null);
+    }
+
+    public void put(@NotNull String id, @NotNull byte[] value, @Nullable String replicas) throws IOException {
+        check(execute(PUT, id, replicas, value), CREATED);
+    }
+
+    public void delete(@NotNull String id) throws IOException {
+        delete(id, null);
+    }
+
+    public void delete(@NotNull String id, @Nullable String replicas) throws IOException {
+        check(execute(DELETE, id, replicas, null), ACCEPTED);
+    }
+
+    @NotNull
+    private Response execute(@NotNull HttpMethod method,
+                             @NotNull String id,
+                             @Nullable String replicas,
+                             @Nullable byte[] data) throws IOException {
+        ConsistentHashRing current = ring;
+        IOException error = null;
+        for (String node : current.getNodes(id, current.size())) {
+            try {
+                return send(node, method, id, replicas, data);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * Sends the request to the given node, reading the response to the end so the connection is reused.
+     */
+    @NotNull
+    static Response send(@NotNull String node,
+                         @NotNull HttpMethod method,
+                         @NotNull String id,
+                         @Nullable String replicas,
+                         @Nullable byte[] data) throws IOException {
+        String query = "?id=" + Http.encode(id) + (replicas == null ? "" : "&replicas=" + replicas);
+        HttpURLConnection conn = (HttpURLConnection) new URL(node + URL_ENTITY + query).openConnection();
+        conn.setRequestMethod(method.toString());
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+        if (data != null) {
+            conn.setDoOutput(true);
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(data);
+            }
+        }
+        int code = conn.getResponseCode();
+        InputStream is = code / 100 == 2 ? conn.getInputStream() : conn.getErrorStream();
+        if (is == null) {
+            return new Response(code);
+        }
+        try (InputStream body = is) {
+            return new Response(code, Http.readData(body));
+        }
+    }
+
+    @NotNull
+    private static List<String> fetchTopology(@NotNull String node) throws IOException {
+        Response resp = Http.request(GET, node + URL_ADMIN_TOPOLOGY, null);
+        check(resp, OK);
+        List<String> topology = new ArrayList<>();
+        for (String line : new String(resp.getData(), StandardCharsets.UTF_8).split("\n")) {
+            if (line.equals(PENDING)) {
+                break;
+            }
+            if (!line.isEmpty()) {
+                topology.add(line);
+            }
+        }
+        return topology;
+    }
+
+    private static void check(@NotNull Response resp, int expected) throws IOException {
+        if (resp.getCode() != expected) {
+            throw new IOException("Unexpected response code " + resp.getCode());
+        }
+    }
+}
@@ -1,94 +1,512 @@
 package ru.mail.polis.vaddya;
 
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.KVService;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
-import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
 import java.util.*;
-import java.util.concurrent.CompletionService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
 
-import static ru.mail.polis.vaddya.KVServiceImpl.HttpMethod.*;
+import static ru.mail.polis.vaddya.HttpMethod.*;
 import static ru.mail.polis.vaddya.Response.*;
 
 public class KVServiceImpl implements KVService {
 
+    private static final Logger log = Logger.getLogger(KVServiceImpl.class.getName());
+
     private static final String URL_STATUS = "/v0/status";
     private static final String URL_INNER = "/v0/inner";
+    private static final String URL_INNER_STREAM = "/v0/inner/stream";
+    private static final String URL_INNER_TOPOLOGY = "/v0/inner/topology";
+    private static final String URL_INNER_TREE = "/v0/inner/tree";
+    private static final String URL_INNER_RANGE = "/v0/inner/range";
     private static final String URL_ENTITY = "/v0/entity";
+    private static final String URL_ENTITIES = "/v0/entities";
+    private static final String URL_NAMESPACE = "/v0/ns/";
+    private static final String URL_NAMESPACE_ENTITY = "/entity";
+    private static final String URL_INNER_ENTITIES = "/v0/inner/entities";
+    private static final String URL_ADMIN_TOPOLOGY = "/v0/admin/topology";
+    private static final String URL_ADMIN_INGEST = "/v0/admin/ingest";
+    private static final String URL_ADMIN_SNAPSHOT = "/v0/admin/snapshot";
+    private static final String URL_ADMIN_BACKUP = "/v0/admin/backup";
+    private static final String URL_ADMIN_HOT_KEYS = "/v0/admin/hotkeys";
+    private static final String URL_METRICS = "/v0/metrics";
     private static final String URL_SERVER = "http://localhost";
 
+    static final String DIR_ENTITIES = "entities";
+    private static final String DIR_HINTS = "hints";
+
     private static final String QUERY_ID = "id";
     private static final String QUERY_REPLICAS = "replicas";
+    private static final String QUERY_NODE = "node";
+    private static final String QUERY_SEGMENT = "segment";
+    private static final String QUERY_DIGEST = "digest";
+    private static final String QUERY_NAME = "name";
+    private static final String QUERY_TO = "to";
+    private static final String QUERY_BASE = "base";
+    private static final String QUERY_MATCH = "match";
 
     private static final String METHOD_IS_NOT_ALLOWED = "Method is not allowed";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String HEADER_SERVER_TIMING = "Server-Timing";
+    private static final String HEADER_SERVER_TIMING_REQUEST = "X-Server-Timing";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_MATCH = "If-Match";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_CONNECTION = "Connection";
 
-    private static final int BUFFER_SIZE = 1024;
+    private static final int VNODES = Integer.getInteger("highload.kv.vnodes", 128);
+    private static final boolean SERVER_TIMING = Boolean.getBoolean("highload.kv.timing");
+    private static final int BACKLOG = Integer.getInteger("highload.kv.backlog", 1024);
+    private static final int WORKER_THREADS =
+            Integer.getInteger("highload.kv.workers", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final int FAN_OUT_THREADS = Integer.getInteger("highload.kv.fanout.threads", 16);
+    private static final int NETWORK_THREADS = Integer.getInteger("highload.kv.network.threads", 2);
+    private static final int DISK_THREADS = Integer.getInteger("highload.kv.disk.threads", WORKER_THREADS);
+    private static final int DISK_QUEUE = Integer.getInteger("highload.kv.disk.queue", 1024);
+    private static final int SHARDS = Integer.getInteger("highload.kv.shards", 0);
+    private static final int BACKGROUND_THREADS = Integer.getInteger("highload.kv.background.threads", 2);
+    private static final int BACKGROUND_QUEUE = Integer.getInteger("highload.kv.background.queue", 16);
+    private static final long STREAM_BYTES_PER_SEC = Long.getLong("highload.kv.stream.rate", 16 * 1024 * 1024);
+    private static final long HINTS_BYTES_PER_SEC = Long.getLong("highload.kv.hints.rate", 4 * 1024 * 1024);
+    private static final long PROBE_INTERVAL = Long.getLong("highload.kv.probe.interval", 1000);
+    private static final long REPAIR_BYTES_PER_SEC = Long.getLong("highload.kv.repair.rate", 1024 * 1024);
+    private static final long REPAIR_INTERVAL = Long.getLong("highload.kv.repair.interval", 10000);
+    private static final long READ_REPAIRS_PER_SEC = Long.getLong("highload.kv.read.repair.rate", 1000);
+    private static final long BACKUP_BYTES_PER_SEC = Long.getLong("highload.kv.backup.rate", 32 * 1024 * 1024);
+    private static final int READ_REPAIR_QUEUE = Integer.getInteger("highload.kv.read.repair.queue", 10000);
+    private static final long BATCH_LINGER_MICROS = Long.getLong("highload.kv.batch.linger", 100);
+    private static final int BATCH_SENDERS = Integer.getInteger("highload.kv.batch.senders", 2);
+    private static final int LIMIT_MIN = Integer.getInteger("highload.kv.limit.min", 4);
+    private static final int LIMIT_MAX = Integer.getInteger("highload.kv.limit.max", 4 * WORKER_THREADS);
+    private static final double LIMIT_TOLERANCE = Double.parseDouble(System.getProperty("highload.kv.limit.tolerance", "4"));
+    private static final double LIMIT_BACKOFF = Double.parseDouble(System.getProperty("highload.kv.limit.backoff", "0.9"));
+    private static final int INNER_LIMIT_MAX = Integer.getInteger("highload.kv.limit.inner.max", 8 * WORKER_THREADS);
+    private static final String RETRY_AFTER_SECONDS = "1";
+    private static final int HOT_KEYS_TOP = Integer.getInteger("highload.kv.hotkeys.top", 20);
+    private static final long HOT_KEYS_WINDOW = Long.getLong("highload.kv.hotkeys.window", 60000);
+    private static final int HOT_KEYS_SLOTS = 6;
+    private static final int MULTI_GET_MAX_IDS = Integer.getInteger("highload.kv.multiget.max", 1000);
+    private static final byte[] DIGEST = {1};
+    // read per node rather than once per JVM, so tests can start nodes with their own namespaces
+    private static final String PROPERTY_NAMESPACES = "highload.kv.namespaces";
+    private static final long MEMORY_BUDGET =
+            Long.getLong("highload.kv.memory.budget", Runtime.getRuntime().maxMemory() / 2);
+    private static final long MEMORY_REQUESTS = Long.getLong("highload.kv.memory.requests", MEMORY_BUDGET / 2);
+    private static final long MEMORY_REPLICATION = Long.getLong("highload.kv.memory.replication", MEMORY_BUDGET / 4);
+    private static final long MEMORY_CACHE = Long.getLong("highload.kv.memory.cache", MEMORY_BUDGET / 4);
+    private static final int BODY_CHUNK = 64 * 1024;
+
+    static {
+        // headers and body are flushed separately, Nagle would hold the body until the delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
 
     @NotNull
     private final HttpServer server;
     @NotNull
-    private final DAO dao;
+    private final Namespaces namespaces;
+    @NotNull
+    private final LocalStorage storage;
+    @NotNull
+    private final String self;
+    @NotNull
+    private final Stage network;
+    @NotNull
+    private final Stage workers;
+    @NotNull
+    private final Stage fanOut;
+    @NotNull
+    private final Stage disk;
+    /**
+     * Long requests of background work, e.g. of a peer's repair, kept off the coordination workers.
+     */
+    @NotNull
+    private final Stage background;
+    /**
+     * Owners of the local storage work instead of the disk stage, if the keyspace is sharded.
+     */
+    @Nullable
+    private final Shards shards;
+    @NotNull
+    private final ConcurrencyLimiter clientLimiter =
+            new ConcurrencyLimiter(WORKER_THREADS, LIMIT_MIN, LIMIT_MAX, LIMIT_TOLERANCE, LIMIT_BACKOFF);
+    @NotNull
+    private final ConcurrencyLimiter innerLimiter =
+            new ConcurrencyLimiter(2 * WORKER_THREADS, LIMIT_MIN, INNER_LIMIT_MAX, LIMIT_TOLERANCE, LIMIT_BACKOFF);
+    @NotNull
+    private final ExecutorService handoffExecutor;
+    @NotNull
+    private final RateLimiter streamLimiter;
+    @NotNull
+    private final HintedHandoff hints;
+    @NotNull
+    private final Ingest ingest;
+    @NotNull
+    private final Snapshots snapshots;
+    @NotNull
+    private final HotKeys hotRequests = new HotKeys(HOT_KEYS_TOP, HOT_KEYS_WINDOW, HOT_KEYS_SLOTS);
+    @NotNull
+    private final HotKeys hotBytes = new HotKeys(HOT_KEYS_TOP, HOT_KEYS_WINDOW, HOT_KEYS_SLOTS);
+    @NotNull
+    private final FailureDetector detector;
+    @NotNull
+    private final AntiEntropy antiEntropy;
+    @NotNull
+    private final Metrics metrics = new Metrics();
+    @NotNull
+    private final MemoryBudget memory = new MemoryBudget(MEMORY_BUDGET, metrics);
+    @NotNull
+    private final MemoryBudget.Component requestMemory = memory.component("requests", MEMORY_REQUESTS);
+    @NotNull
+    private final MemoryBudget.Component replicationMemory = memory.component("replication", MEMORY_REPLICATION);
+    /**
+     * Bytes of request bodies reserved by the current worker, released when the request is done.
+     */
+    @NotNull
+    private final ThreadLocal<long[]> requestReserved = ThreadLocal.withInitial(() -> new long[1]);
+    @NotNull
+    private final ReadRepair readRepair;
+    @NotNull
+    private final ReadCoalescer coalescer = new ReadCoalescer(metrics);
     @NotNull
-    private final List<String> topology;
+    private final LongAdder fullFetches =
+            metrics.counter("kv_digest_full_fetches_total", "Full values fetched after a digest mismatch");
     @NotNull
-    private final CompletionService<Response> completionService;
+    private final ConcurrentMap<String, ReplicationQueue> replication = new ConcurrentHashMap<>();
+    @NotNull
+    private final LongAdder replicationBatches =
+            metrics.counter("kv_replication_batches_total", "Replica write batches sent to peers");
+    @NotNull
+    private final LongAdder replicationWrites =
+            metrics.counter("kv_replication_batched_writes_total", "Replica writes sent to peers in batches");
+    @NotNull
+    private final LongAdder notEnoughReplicas =
+            metrics.counter("kv_not_enough_replicas_total", "Requests failed because too few replicas answered");
+    @NotNull
+    private final LongAdder compressionOutRaw = metrics.counter(
+            "kv_compression_bytes_total{direction=\"out\",form=\"raw\"}", "Bodies before and after compression");
+    @NotNull
+    private final LongAdder compressionOutEncoded = metrics.counter(
+            "kv_compression_bytes_total{direction=\"out\",form=\"encoded\"}", "Bodies before and after compression");
+    @NotNull
+    private final LongAdder compressionInRaw = metrics.counter(
+            "kv_compression_bytes_total{direction=\"in\",form=\"raw\"}", "Bodies before and after compression");
+    @NotNull
+    private final LongAdder compressionInEncoded = metrics.counter(
+            "kv_compression_bytes_total{direction=\"in\",form=\"encoded\"}", "Bodies before and after compression");
+    @NotNull
+    private final LongAdder uncompressed = metrics.counter("kv_compression_skipped_total",
+            "Bodies sent as is to clients accepting compression because they are below the threshold");
+    @NotNull
+    private final Histogram compressionLatency =
+            metrics.histogram("kv_compression_latency_seconds", "Time to compress a response body");
+    @NotNull
+    private final Histogram writeLatency =
+            metrics.histogram("kv_response_write_seconds", "Time to write a response to the client");
+    @NotNull
+    private final LongAdder shedClient =
+            metrics.counter("kv_requests_shed_total{class=\"client\"}", "Requests rejected by the concurrency limit");
+    @NotNull
+    private final LongAdder shedInner =
+            metrics.counter("kv_requests_shed_total{class=\"inner\"}", "Requests rejected by the concurrency limit");
+    @NotNull
+    private final AtomicLong clock = new AtomicLong();
+    @NotNull
+    private volatile Placement placement;
 
     public KVServiceImpl(int port,
-                         @NotNull DAO dao,
+                         @NotNull File data,
                          @NotNull Set<String> topology) throws IOException {
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.dao = dao;
-        this.topology = new ArrayList<>(topology);
-        Executor executor = Executors.newFixedThreadPool(topology.size());
-        this.completionService = new ExecutorCompletionService<>(executor);
+        this(port, URL_SERVER + ":" + port, data, topology);
+    }
+
+    /**
+     * @param self the address the node is known by in the topology, e.g. of a proxy in front of {@code port}
+     */
+    KVServiceImpl(int port,
+                  @NotNull String self,
+                  @NotNull File data,
+                  @NotNull Set<String> topology) throws IOException {
+        File entities = directory(data, DIR_ENTITIES);
+        File sharded = new File(data, Shards.DIR);
+        if (SHARDS > 0) {
+            this.shards = new Shards(sharded, SHARDS, DISK_QUEUE, metrics);
+            long moved = shards.adopt(entities);
+            if (moved > 0) {
+                log.info(moved + " values moved into " + SHARDS + " shards");
+            }
+        } else if (Shards.exists(sharded)) {
+            throw new IOException("Values of " + data + " are split into shards, highload.kv.shards must be set");
+        } else {
+            this.shards = null;
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        this.namespaces = new Namespaces(shards == null ? new DAOImpl(entities.getPath()) : shards,
+                new File(data, Namespaces.DIR),
+                System.getProperty(PROPERTY_NAMESPACES, ""), memory.component("cache", MEMORY_CACHE), metrics);
+        this.storage = new LocalStorage(namespaces, metrics);
+        this.self = self;
+        this.placement = new Placement(new ConsistentHashRing(topology, VNODES), null);
+        this.network = Stage.unbounded("network", NETWORK_THREADS, metrics);
+        this.workers = Stage.prioritized("coordination", WORKER_THREADS, metrics);
+        this.fanOut = Stage.unbounded("fanout", FAN_OUT_THREADS, metrics);
+        this.disk = Stage.bounded("disk", DISK_THREADS, DISK_QUEUE, metrics);
+        this.background = Stage.bounded("background", BACKGROUND_THREADS, BACKGROUND_QUEUE, metrics);
+        this.handoffExecutor = Executors.newSingleThreadExecutor();
+        this.streamLimiter = new RateLimiter(STREAM_BYTES_PER_SEC);
+        this.hints = new HintedHandoff(directory(data, DIR_HINTS), new RateLimiter(HINTS_BYTES_PER_SEC), URL_INNER_STREAM);
+        this.ingest = new Ingest(directory(data, Ingest.DIR), storage);
+        List<String> values = new ArrayList<>(shards == null
+                ? Collections.singletonList(DIR_ENTITIES)
+                : shards.directories());
+        values.addAll(namespaces.directories());
+        this.snapshots = new Snapshots(data, values, directory(data, Snapshots.DIR),
+                new RateLimiter(BACKUP_BYTES_PER_SEC));
+        this.detector = new FailureDetector(self, this::getAllNodes, URL_STATUS, PROBE_INTERVAL, hints::replay);
+        this.antiEntropy = new AntiEntropy(storage, self, this::getStableRing, detector::isAlive,
+                new RateLimiter(REPAIR_BYTES_PER_SEC), URL_INNER_TREE, URL_INNER_RANGE, URL_INNER_STREAM,
+                REPAIR_INTERVAL);
+        this.readRepair = new ReadRepair(READ_REPAIR_QUEUE, new RateLimiter(READ_REPAIRS_PER_SEC),
+                this::writeRepair, metrics);
+
+        metrics.gauge("kv_concurrency_limit{class=\"client\"}", "Current adaptive limit of requests in flight",
+                clientLimiter::getLimit);
+        metrics.gauge("kv_concurrency_limit{class=\"inner\"}", "Current adaptive limit of requests in flight",
+                innerLimiter::getLimit);
+        metrics.gauge("kv_requests_inflight{class=\"client\"}", "Admitted requests in flight",
+                clientLimiter::getInflight);
+        metrics.gauge("kv_requests_inflight{class=\"inner\"}", "Admitted requests in flight",
+                innerLimiter::getInflight);
+
+        server.setExecutor(network);
+        server.createContext(URL_STATUS, dispatch(this::processStatus, Priority.INNER));
+        server.createContext(URL_INNER, limit(this::processInner, Priority.INNER, this::diskFor));
+        server.createContext(URL_INNER_STREAM, limit(this::processInnerStream, Priority.INNER));
+        server.createContext(URL_INNER_TOPOLOGY, dispatch(this::processInnerTopology, Priority.INNER));
+        server.createContext(URL_INNER_TREE, dispatch(this::processInnerTree, background, Priority.BACKGROUND));
+        server.createContext(URL_INNER_RANGE, dispatch(this::processInnerRange, background, Priority.BACKGROUND));
+        server.createContext(URL_INNER_ENTITIES, limit(this::processInnerEntities, Priority.INNER));
+        server.createContext(URL_ENTITY, limit(this::processEntity, Priority.CLIENT));
+        server.createContext(URL_ENTITIES, limit(this::processEntities, Priority.CLIENT));
+        server.createContext(URL_NAMESPACE, limit(this::processNamespace, Priority.CLIENT));
+        server.createContext(URL_ADMIN_TOPOLOGY, dispatch(this::processAdminTopology, Priority.CLIENT));
+        server.createContext(URL_ADMIN_INGEST, dispatch(this::processAdminIngest, Priority.CLIENT));
+        server.createContext(URL_ADMIN_SNAPSHOT, dispatch(this::processAdminSnapshot, background, Priority.BACKGROUND));
+        server.createContext(URL_ADMIN_BACKUP, dispatch(this::processAdminBackup, background, Priority.BACKGROUND));
+        server.createContext(URL_ADMIN_HOT_KEYS, dispatch(this::processAdminHotKeys, Priority.CLIENT));
+        server.createContext(URL_METRICS, dispatch(this::processMetrics, Priority.INNER));
+    }
+
+    /**
+     * Runs on the network stage, so excess requests are shed before they queue up for workers.
+     * Inner and client requests differ in latency by the fan-out, so each class has its own limit;
+     * admitted inner requests also run before waiting client ones.
+     */
+    private HttpHandler limit(@NotNull HttpHandler handler,
+                              @NotNull Priority priority) {
+        return limit(handler, priority, http -> prioritized(workers, priority));
+    }
+
+    /**
+     * @param route the executor to handle the request on
+     */
+    private HttpHandler limit(@NotNull HttpHandler handler,
+                              @NotNull Priority priority,
+                              @NotNull Function<HttpExchange, Executor> route) {
+        boolean inner = priority == Priority.INNER;
+        ConcurrencyLimiter limiter = inner ? innerLimiter : clientLimiter;
+        return http -> {
+            if (!limiter.tryAcquire()) {
+                (inner ? shedInner : shedClient).increment();
+                sendUnavailable(http, (inner ? "Inner" : "Client") + " concurrency limit is reached");
+                return;
+            }
+            long start = System.nanoTime();
+            dispatch(h -> {
+                try {
+                    handler.handle(h);
+                } finally {
+                    limiter.release(System.nanoTime() - start);
+                }
+            }, route).handle(http);
+        };
+    }
 
-        server.createContext(URL_STATUS, this::processStatus);
-        server.createContext(URL_INNER, this::processInner);
-        server.createContext(URL_ENTITY, this::processEntity);
+    private HttpHandler dispatch(@NotNull HttpHandler handler,
+                                 @NotNull Priority priority) {
+        return dispatch(handler, workers, priority);
+    }
+
+    private HttpHandler dispatch(@NotNull HttpHandler handler,
+                                 @NotNull Stage stage,
+                                 @NotNull Priority priority) {
+        return dispatch(handler, http -> prioritized(stage, priority));
+    }
+
+    /**
+     * @param route the executor to handle the request on
+     */
+    private HttpHandler dispatch(@NotNull HttpHandler handler,
+                                 @NotNull Function<HttpExchange, Executor> route) {
+        return http -> {
+            long start = System.nanoTime();
+            try {
+                route.apply(http).execute(() -> handle(http, handler, start));
+            } catch (RejectedExecutionException e) {
+                sendUnavailable(http, e.getMessage());
+            }
+        };
+    }
+
+    /**
+     * @return the method as a metric label, any method the service doesn't know is {@code other}
+     */
+    @NotNull
+    private static String methodLabel(@NotNull String method) {
+        for (HttpMethod known : HttpMethod.values()) {
+            if (known.name().equals(method)) {
+                return method;
+            }
+        }
+        return "other";
+    }
+
+    @NotNull
+    private static Executor prioritized(@NotNull Stage stage,
+                                        @NotNull Priority priority) {
+        return task -> stage.execute(priority.ordinal(), task);
+    }
+
+    /**
+     * Inner requests of a key run right on the disk stage or the shard of the key,
+     * so they hold no worker while waiting for the disk.
+     */
+    @NotNull
+    private Executor diskFor(@NotNull HttpExchange http) {
+        try {
+            String id = parseParams(http.getRequestURI().getQuery()).get(QUERY_ID);
+            return id == null ? disk : diskFor(id);
+        } catch (IllegalArgumentException e) {
+            return disk; // the handler answers with 400
+        }
+    }
+
+    private void handle(@NotNull HttpExchange http,
+                        @NotNull HttpHandler handler,
+                        long start) {
+        Timings.begin(start).add("queue", System.nanoTime() - start);
+        try {
+            try {
+                handler.handle(http);
+            } catch (MemoryBudget.ExhaustedException | RejectedExecutionException e) {
+                sendUnavailable(http, e.getMessage());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Can't process " + http.getRequestURI(), e);
+            http.close();
+        } finally {
+            long[] reserved = requestReserved.get();
+            requestMemory.release(reserved[0]);
+            reserved[0] = 0;
+            metrics.histogram("kv_request_latency_seconds{endpoint=\"" + http.getHttpContext().getPath()
+                            + "\",method=\"" + methodLabel(http.getRequestMethod()) + "\"}",
+                    "Request latency including the wait for a worker")
+                    .recordNanos(System.nanoTime() - start);
+            Timings.end();
+        }
     }
 
     @Override
     public void start() {
+        handoffExecutor.execute(this::ingestBulkFiles);
+        if (shards != null) {
+            shards.start();
+        }
         server.start();
+        detector.start();
+        antiEntropy.start();
+        readRepair.start();
     }
 
     @Override
     public void stop() {
         server.stop(0);
+        detector.stop();
+        antiEntropy.stop();
+        readRepair.stop();
+        replication.values().forEach(ReplicationQueue::stop);
+        hints.stop();
+        handoffExecutor.shutdownNow();
+        network.stop();
+        workers.stop();
+        fanOut.stop();
+        disk.stop();
+        background.stop();
+        if (shards != null) {
+            shards.stop();
+        }
     }
 
     private void processStatus(@NotNull HttpExchange http) throws IOException {
         sendResponse(http, new Response(OK));
     }
 
+    private void processMetrics(@NotNull HttpExchange http) throws IOException {
+        sendResponse(http, new Response(OK, metrics.toPrometheus()));
+    }
+
+    /**
+     * Runs on the disk stage or the shard of the key.
+     */
     private void processInner(@NotNull HttpExchange http) throws IOException {
         try {
-            QueryParams params = parseQuery(http.getRequestURI().getQuery());
+            String query = http.getRequestURI().getQuery();
+            QueryParams params = parseQuery(query);
 
             Response resp;
             switch (HttpMethod.valueOf(http.getRequestMethod())) {
                 case GET:
-                    resp = processInnerGet(params);
+                    boolean digest = Boolean.parseBoolean(parseParams(query).get(QUERY_DIGEST));
+                    resp = processInnerGet(params.getId(), digest);
                     break;
                 case PUT:
-                    final byte[] data = readData(http.getRequestBody());
-                    resp = processInnerPut(params, data);
-                    break;
-                case DELETE:
-                    resp = processInnerDelete(params);
+                    byte[] data = readBody(http);
+                    resp = processInnerPut(params.getId(), data, parseParams(query).get(QUERY_MATCH));
                     break;
                 default:
                     resp = new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED);
@@ -100,54 +518,155 @@ public class KVServiceImpl implements KVService {
         }
     }
 
-    private Response processInnerGet(@NotNull QueryParams params) throws IOException {
+    private Response processInnerGet(@NotNull String id,
+                                     boolean digest) throws IOException {
         try {
-            String id = params.getId();
-            final byte[] getValue = dao.get(id);
-            return new Response(OK, getValue);
+            Value value = storage.get(id);
+            if (value == null) {
+                return new Response(NOT_FOUND);
+            }
+            return new Response(OK, digest ? value.toDigest().toBytes() : value.toBytes());
         } catch (IllegalArgumentException e) {
             return new Response(BAD_REQUEST, e.getMessage());
-        } catch (NoSuchElementException e) {
-            return new Response(NOT_FOUND, e.getMessage());
         }
     }
 
-    private Response processInnerPut(@NotNull QueryParams params,
+    private Response processInnerPut(@NotNull String id,
                                      @NotNull byte[] data) {
+        return processInnerPut(id, data, null);
+    }
+
+    private Response processInnerPut(@NotNull String id,
+                                     @NotNull byte[] data,
+                                     @Nullable String ifMatch) {
         try {
-            String id = params.getId();
-            dao.upsert(id, data);
+            Value value = Value.fromBytes(data);
+            if (ifMatch == null) {
+                storage.apply(id, value);
+            } else if (!storage.applyIfMatch(id, value, ifMatch)) {
+                return new Response(PRECONDITION_FAILED);
+            }
             return new Response(CREATED);
         } catch (IOException | IllegalArgumentException e) {
             return new Response(BAD_REQUEST, e.getMessage());
         }
     }
 
-    private Response processInnerDelete(@NotNull QueryParams params) throws IOException {
+    private void processInnerStream(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != POST) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
         try {
-            String id = params.getId();
-            dao.delete(id);
-            return new Response(ACCEPTED);
+            Batch batch = Batch.fromBytes(readBody(http));
+            onDisk(batch, part -> {
+                for (Batch.Record record : part.getRecords()) {
+                    if (record.getData() != null) {
+                        storage.apply(record.getId(), Value.fromBytes(record.getData()));
+                    }
+                }
+                return part;
+            });
+            sendResponse(http, new Response(CREATED));
         } catch (IllegalArgumentException e) {
-            return new Response(BAD_REQUEST, e.getMessage());
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
         }
     }
 
-    private void processEntity(@NotNull HttpExchange http) throws IOException {
+    /**
+     * Multi-get of local values: the request is a {@link Batch} of ids, each with no data for the full value
+     * or with {@link #DIGEST} for its digest. The response is a batch of the values, no data if absent.
+     */
+    private void processInnerEntities(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != POST) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
+        try {
+            Batch request = Batch.fromBytes(readBody(http));
+            sendResponse(http, new Response(OK, onDisk(request, this::readLocal).toBytes()));
+        } catch (IllegalArgumentException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        }
+    }
+
+    @NotNull
+    private Batch readLocal(@NotNull Batch request) throws IOException {
+        Batch values = new Batch();
+        for (Batch.Record record : request.getRecords()) {
+            Value value = storage.get(record.getId());
+            if (value != null && record.getData() != null) {
+                value = value.toDigest();
+            }
+            values.add(record.getId(), value == null ? null : value.toBytes());
+        }
+        return values;
+    }
+
+    private void processInnerTopology(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != PUT) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
         try {
-            QueryParams params = parseQuery(http.getRequestURI().getQuery());
+            String body = new String(readBody(http), StandardCharsets.UTF_8);
+            Set<String> topology = new HashSet<>(Arrays.asList(body.trim().split("\n")));
+            sendResponse(http, changeTopology(topology));
+        } catch (IllegalArgumentException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        }
+    }
+
+    private void processInnerTree(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != GET) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
+        try {
+            Map<String, String> params = parseParams(http.getRequestURI().getQuery());
+            byte[] tree = antiEntropy.tree(parseNode(params), parseSegment(params));
+            sendResponse(http, new Response(OK, tree));
+        } catch (IllegalArgumentException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        } catch (IOException | InterruptedException e) {
+            sendResponse(http, new Response(SERVER_ERROR, e.getMessage()));
+        }
+    }
+
+    private void processInnerRange(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != POST) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
+        try {
+            Map<String, String> params = parseParams(http.getRequestURI().getQuery());
+            Set<Integer> leaves = AntiEntropy.decodeLeaves(readBody(http));
+            Batch batch = antiEntropy.range(parseNode(params), parseSegment(params), leaves);
+            sendResponse(http, new Response(OK, batch.toBytes()));
+        } catch (IllegalArgumentException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        } catch (IOException | InterruptedException e) {
+            sendResponse(http, new Response(SERVER_ERROR, e.getMessage()));
+        }
+    }
+
+    private void processAdminTopology(@NotNull HttpExchange http) throws IOException {
+        try {
+            Placement current = placement;
+            Set<String> topology = new TreeSet<>(current.ring.getNodes());
 
             Response resp;
             switch (HttpMethod.valueOf(http.getRequestMethod())) {
                 case GET:
-                    resp = processEntityGet(params);
+                    resp = new Response(OK, describe(current));
                     break;
                 case PUT:
-                    final byte[] data = readData(http.getRequestBody());
-                    resp = processEntityPut(params, data);
+                    topology.add(parseNode(parseParams(http.getRequestURI().getQuery())));
+                    resp = broadcastTopology(current, topology);
                     break;
                 case DELETE:
-                    resp = processEntityDelete(params);
+                    topology.remove(parseNode(parseParams(http.getRequestURI().getQuery())));
+                    resp = broadcastTopology(current, topology);
                     break;
                 default:
                     resp = new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED);
@@ -159,158 +678,935 @@ public class KVServiceImpl implements KVService {
         }
     }
 
-    private Response processEntityGet(@NotNull QueryParams params) throws IOException {
-        try {
-            String id = params.getId();
-            List<String> nodes = getNodesById(id, params.getFrom());
-            executeFutures(GET, params, nodes, null);
+    private void processAdminIngest(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != POST) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
+        handoffExecutor.execute(this::ingestBulkFiles);
+        sendResponse(http, new Response(ACCEPTED));
+    }
 
-            int ok = 0;
-            int notFound = 0;
-            byte[] value = null;
-            for (int i = 0; i < params.getFrom(); i++) {
-                try {
-                    Response resp = completionService.take().get();
-                    if (resp.getCode() == OK) {
-                        ok++;
-                        value = resp.getData();
-                    } else if (resp.getCode() == NOT_FOUND) {
-                        notFound++;
+    /**
+     * Lists the keys with the most requests and the most bytes per second over the recent window.
+     */
+    private void processAdminHotKeys(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != GET) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        describe(sb.append("requests:\n"), hotRequests);
+        describe(sb.append("bytes:\n"), hotBytes);
+        sendResponse(http, new Response(OK, sb.toString()));
+    }
+
+    private void processAdminSnapshot(@NotNull HttpExchange http) throws IOException {
+        try {
+            Response resp;
+            switch (HttpMethod.valueOf(http.getRequestMethod())) {
+                case GET:
+                    resp = new Response(OK, String.join("\n", snapshots.list()));
+                    break;
+                case POST:
+                    String query = http.getRequestURI().getQuery();
+                    String name = query == null ? null : parseParams(query).get(QUERY_NAME);
+                    if (name == null) {
+                        name = "snapshot-" + System.currentTimeMillis();
                     }
-                } catch (Exception e) {
-                    return new Response(SERVER_ERROR);
-                }
+                    long files = snapshots.create(name);
+                    log.info("Snapshot " + name + " of " + files + " files created");
+                    resp = new Response(CREATED, name);
+                    break;
+                case DELETE:
+                    snapshots.delete(parseName(parseParams(http.getRequestURI().getQuery())));
+                    resp = new Response(ACCEPTED);
+                    break;
+                default:
+                    resp = new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED);
+                    break;
             }
+            sendResponse(http, resp);
+        } catch (IllegalArgumentException | FileSystemException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        }
+    }
 
-            boolean hasLocally = processInnerGet(params).getCode() == OK;
-            if (ok > 0 && notFound == 1 && !hasLocally) { // we probably missed the insertion
-                processInnerPut(params, value);
-                notFound--;
-                ok++;
+    private void processAdminBackup(@NotNull HttpExchange http) throws IOException {
+        if (HttpMethod.valueOf(http.getRequestMethod()) != POST) {
+            sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+            return;
+        }
+        try {
+            Map<String, String> params = parseParams(http.getRequestURI().getQuery());
+            String to = params.get(QUERY_TO);
+            if (to == null || to.isEmpty()) {
+                throw new IllegalArgumentException("Backup directory is invalid");
             }
+            long copied = snapshots.backup(parseName(params), new File(to), params.get(QUERY_BASE));
+            sendResponse(http, new Response(CREATED, Long.toString(copied)));
+        } catch (IllegalArgumentException | FileSystemException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendResponse(http, new Response(SERVER_ERROR));
+        }
+    }
 
-            if (ok + notFound < params.getAck()) {
-                return new Response(NOT_ENOUGH_REPLICAS);
-            } else if (ok < params.getAck()) {
-                return new Response(NOT_FOUND);
-            } else {
-                return new Response(OK, value);
+    private void ingestBulkFiles() {
+        try {
+            long applied = ingest.run();
+            if (applied > 0) {
+                log.info(applied + " values ingested");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            log.log(Level.WARNING, "Ingest failed", e);
+        }
+    }
+
+    private Response broadcastTopology(@NotNull Placement current,
+                                       @NotNull Set<String> topology) {
+        if (current.pending != null) {
+            return new Response(CONFLICT, "Topology change is in progress");
+        }
+        if (topology.isEmpty()) {
+            throw new IllegalArgumentException("Topology can't be empty");
+        }
+
+        Set<String> nodes = new TreeSet<>(current.ring.getNodes());
+        nodes.addAll(topology);
+        byte[] body = String.join("\n", topology).getBytes(StandardCharsets.UTF_8);
+        List<String> unreachable = new ArrayList<>();
+        for (String node : nodes) {
+            Response resp = node.equals(self)
+                    ? changeTopology(topology)
+                    : Http.request(PUT, node + URL_INNER_TOPOLOGY, body);
+            if (resp.getCode() != ACCEPTED) {
+                unreachable.add(node);
+            }
+        }
+
+        if (!unreachable.isEmpty()) {
+            return new Response(NOT_ENOUGH_REPLICAS, "Topology is not accepted by " + unreachable);
+        }
+        return new Response(ACCEPTED);
+    }
+
+    private synchronized Response changeTopology(@NotNull Set<String> topology) {
+        Placement current = placement;
+        if (new HashSet<>(current.ring.getNodes()).equals(topology)) {
+            return new Response(ACCEPTED);
+        }
+        if (current.pending != null) {
+            return new Response(CONFLICT, "Topology change is in progress");
+        }
+
+        ConsistentHashRing target = new ConsistentHashRing(topology, VNODES);
+        placement = new Placement(current.ring, target);
+        Handoff handoff = new Handoff(storage, self, current.ring, target, streamLimiter, URL_INNER_STREAM);
+        handoffExecutor.execute(() -> {
+            try {
+                handoff.run();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Handoff failed, leaving the rest to repair", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            placement = new Placement(target, null);
+        });
+        return new Response(ACCEPTED);
+    }
+
+    private void processEntity(@NotNull HttpExchange http) throws IOException {
+        processEntity(http, null);
+    }
+
+    /**
+     * {@code /v0/ns/{name}/entity} is {@code /v0/entity} for the keys of the namespace.
+     */
+    private void processNamespace(@NotNull HttpExchange http) throws IOException {
+        String path = http.getRequestURI().getPath().substring(URL_NAMESPACE.length());
+        int idx = path.indexOf('/');
+        Namespaces.Namespace namespace = idx < 0 ? null : namespaces.namespace(path.substring(0, idx));
+        if (namespace == null || !path.substring(idx).equals(URL_NAMESPACE_ENTITY)) {
+            sendResponse(http, new Response(NOT_FOUND, "Namespace is unknown"));
+            return;
+        }
+        processEntity(http, namespace);
+    }
+
+    private void processEntity(@NotNull HttpExchange http,
+                               @Nullable Namespaces.Namespace namespace) throws IOException {
+        try {
+            long start = System.nanoTime();
+            String query = http.getRequestURI().getQuery();
+            QueryParams params = namespace == null ? parseQuery(query) : parseQuery(namespace, query);
+            Timings.current().add("parse", System.nanoTime() - start);
+            HttpMethod method = HttpMethod.valueOf(http.getRequestMethod());
+            if (!Namespaces.isPlain(parseParams(query).get(QUERY_ID))) {
+                // such a key is never stored, and it must not reach a namespace
+                sendResponse(http, method == GET
+                        ? new Response(NOT_FOUND)
+                        : new Response(BAD_REQUEST, "ID is invalid"));
+                return;
+            }
+            hotRequests.record(params.getId(), 1);
+
+            Response resp;
+            switch (method) {
+                case GET:
+                    resp = coalescer.read(params, this::processEntityGet);
+                    String ifNoneMatch = http.getRequestHeaders().getFirst(HEADER_IF_NONE_MATCH);
+                    if (resp.getCode() == OK && ifNoneMatch != null
+                            && Http.matches(ifNoneMatch, resp.getETag(), true)) {
+                        resp = new Response(NOT_MODIFIED).withETag(resp.getETag());
+                    }
+                    if (resp.hasData()) {
+                        hotBytes.record(params.getId(), resp.getData().length);
+                    }
+                    break;
+                case PUT:
+                    long read = System.nanoTime();
+                    final byte[] data = readBody(http);
+                    Timings.current().add("body", System.nanoTime() - read);
+                    hotBytes.record(params.getId(), data.length);
+                    resp = processEntityPut(params, data, http.getRequestHeaders().getFirst(HEADER_IF_MATCH));
+                    break;
+                case DELETE:
+                    resp = processEntityDelete(params, http.getRequestHeaders().getFirst(HEADER_IF_MATCH));
+                    break;
+                default:
+                    resp = new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED);
+                    break;
             }
+            sendResponse(http, resp);
         } catch (IllegalArgumentException e) {
-            return new Response(BAD_REQUEST, e.getMessage());
-        } catch (NoSuchElementException e) {
-            return new Response(NOT_FOUND, e.getMessage());
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
         }
     }
 
-    private Response processEntityPut(@NotNull QueryParams params,
-                                      @Nullable byte[] data) {
+    /**
+     * Multi-get: {@code GET ?id=a&id=b&replicas=ack/from} or {@code POST ?replicas=ack/from}
+     * with the ids one per line. Each id is read with the given {@code replicas} as by {@code GET /v0/entity},
+     * but the ids are grouped by replica, so every node gets a single inner request.
+     * <p>
+     * The response is a {@link Batch} with a record per distinct id, its data being the status as
+     * an {@code int} followed by the value for {@code 200}.
+     */
+    private void processEntities(@NotNull HttpExchange http) throws IOException {
         try {
-            List<String> nodes = getNodesById(params.getId(), params.getFrom());
-            executeFutures(PUT, params, nodes, data);
+            String query = http.getRequestURI().getQuery();
+            Map<String, String> params = query == null ? Collections.emptyMap() : parseParams(query);
+            Collection<String> ids;
+            switch (HttpMethod.valueOf(http.getRequestMethod())) {
+                case GET:
+                    ids = parseIds(query);
+                    break;
+                case POST:
+                    ids = new LinkedHashSet<>();
+                    for (String id : new String(readBody(http), StandardCharsets.UTF_8).split("\n")) {
+                        if (!id.isEmpty()) {
+                            ids.add(id);
+                        }
+                    }
+                    break;
+                default:
+                    sendResponse(http, new Response(NOT_ALLOWED, METHOD_IS_NOT_ALLOWED));
+                    return;
+            }
+            if (ids.isEmpty() || ids.size() > MULTI_GET_MAX_IDS) {
+                throw new IllegalArgumentException("From 1 to " + MULTI_GET_MAX_IDS + " ids are expected");
+            }
+            List<QueryParams> keys = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                Namespaces.checkId(id);
+                keys.add(parseQuery(id, params.get(QUERY_REPLICAS)));
+                hotRequests.record(id, 1);
+            }
+            sendResponse(http, new Response(OK, processEntitiesGet(keys).toBytes()));
+        } catch (IllegalArgumentException e) {
+            sendResponse(http, new Response(BAD_REQUEST, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendResponse(http, new Response(SERVER_ERROR));
+        }
+    }
 
-            int ok = 0;
-            for (int i = 0; i < params.getFrom() && ok < params.getAck(); i++) {
-                try {
-                    Response resp = completionService.take().get();
-                    if (resp.getCode() == CREATED) {
-                        ok++;
+    /**
+     * Every replica gets a single batch of the keys it holds. Payloads known only by digests
+     * are fetched afterwards, again with a batch per replica.
+     */
+    @NotNull
+    private Batch processEntitiesGet(@NotNull List<QueryParams> keys) throws InterruptedException {
+        Map<String, Batch> requests = new HashMap<>();
+        Map<String, List<String>> replicas = new HashMap<>();
+        Map<String, String> primaries = new HashMap<>();
+        for (QueryParams key : keys) {
+            List<String> nodes = getNodesById(key.getId(), key.getFrom());
+            String primary = nodes.contains(self) ? self : nodes.get(0);
+            for (String node : nodes) {
+                requests.computeIfAbsent(node, n -> new Batch()).add(key.getId(), node.equals(primary) ? null : DIGEST);
+            }
+            replicas.put(key.getId(), nodes);
+            primaries.put(key.getId(), primary);
+        }
+        Map<String, CompletableFuture<Map<String, Response>>> replies = new HashMap<>();
+        requests.forEach((node, request) -> replies.put(node, requestMany(node, request)));
+
+        Map<String, List<CompletableFuture<Reply>>> futures = new HashMap<>();
+        Map<String, Quorum> quorums = new HashMap<>();
+        Map<String, Value> values = new HashMap<>();
+        for (QueryParams key : keys) {
+            String id = key.getId();
+            List<CompletableFuture<Reply>> replicaFutures = new ArrayList<>();
+            CompletableFuture<Reply> full = null;
+            for (String node : replicas.get(id)) {
+                CompletableFuture<Reply> future = replies.get(node).thenApply(found ->
+                        new Reply(node, found.getOrDefault(id, new Response(SERVER_ERROR))));
+                replicaFutures.add(future);
+                if (node.equals(primaries.get(id))) {
+                    full = future;
+                }
+            }
+            Quorum quorum = await(key, replicaFutures);
+            futures.put(id, replicaFutures);
+            quorums.put(id, quorum);
+            if (quorum.newest != null) {
+                values.put(id, known(quorum.newest.getValue(), quorum.received, full));
+            }
+        }
+        long resolving = System.nanoTime();
+        fetchPayloads(quorums, values);
+        Timings.current().add("resolve", System.nanoTime() - resolving);
+        CompletableFuture.allOf(replies.values().toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> futures.forEach((id, replicaFutures) -> repairStale(id, replicaFutures, values.get(id))));
+
+        Batch result = new Batch();
+        for (QueryParams key : keys) {
+            String id = key.getId();
+            Response resp = respond(key, quorums.get(id), values.get(id));
+            byte[] value = resp.hasData() ? resp.getData() : new byte[0];
+            hotBytes.record(id, value.length);
+            result.add(id, ByteBuffer.allocate(Integer.BYTES + value.length).putInt(resp.getCode()).put(value).array());
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the digests among {@code values} with full values. Every round asks each replica
+     * for all the payloads it is the next candidate for, a failed replica passes its keys
+     * to the next replica which returned the same digest.
+     */
+    private void fetchPayloads(@NotNull Map<String, Quorum> quorums,
+                               @NotNull Map<String, Value> values) {
+        Map<String, Deque<String>> candidates = new HashMap<>();
+        values.forEach((id, value) -> {
+            if (value.isDigest() && !value.isTombstone()) {
+                fullFetches.increment();
+                Deque<String> nodes = new ArrayDeque<>();
+                for (Reply reply : quorums.get(id).received) {
+                    if (reply.isFound() && reply.getValue().isSameVersion(value)) {
+                        nodes.add(reply.node);
                     }
-                } catch (Exception e) {
-                    return new Response(SERVER_ERROR);
+                }
+                candidates.put(id, nodes);
+            }
+        });
+        while (!candidates.isEmpty()) {
+            Map<String, Batch> requests = new HashMap<>();
+            for (Iterator<Map.Entry<String, Deque<String>>> it = candidates.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Deque<String>> candidate = it.next();
+                String node = candidate.getValue().poll();
+                if (node == null) {
+                    it.remove(); // nobody could return the payload, the digest stays
+                } else {
+                    requests.computeIfAbsent(node, n -> new Batch()).add(candidate.getKey(), null);
                 }
             }
+            Map<String, CompletableFuture<Map<String, Response>>> replies = new HashMap<>();
+            requests.forEach((node, request) -> replies.put(node, requestMany(node, request)));
+            replies.forEach((node, future) -> future.join().forEach((id, resp) -> {
+                Reply reply = new Reply(node, resp);
+                if (reply.isFound() && !reply.getValue().isDigest() && reply.getValue().isSameVersion(values.get(id))) {
+                    values.put(id, reply.getValue());
+                    candidates.remove(id);
+                }
+            }));
+        }
+    }
 
-            if (ok < params.getAck()) {
-                return new Response(NOT_ENOUGH_REPLICAS);
+    @NotNull
+    private CompletableFuture<Map<String, Response>> requestMany(@NotNull String node,
+                                                                 @NotNull Batch request) {
+        try {
+            return fanOut.supply(() -> readMany(node, request));
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+    }
+
+    /**
+     * @return replies by id, empty if the node failed
+     */
+    @NotNull
+    private Map<String, Response> readMany(@NotNull String node,
+                                           @NotNull Batch request) {
+        try {
+            Batch values;
+            if (node.equals(self)) {
+                values = onDisk(request, this::readLocal);
             } else {
-                return new Response(CREATED);
+                Events.InnerCall event = new Events.InnerCall();
+                event.begin();
+                long start = System.nanoTime();
+                Response resp = Http.request(POST, node + URL_INNER_ENTITIES, request.toBytes());
+                replicaLatency(node, POST).recordNanos(System.nanoTime() - start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.node = node;
+                    event.method = POST.name();
+                    event.path = URL_INNER_ENTITIES;
+                    event.records = request.size();
+                    event.status = resp.getCode();
+                    event.commit();
+                }
+                if (resp.getCode() != OK) {
+                    if (resp.isUnreachable()) {
+                        detector.suspect(node);
+                    }
+                    return Collections.emptyMap();
+                }
+                values = Batch.fromBytes(resp.getData());
             }
-        } catch (IllegalArgumentException e) {
-            return new Response(BAD_REQUEST, e.getMessage());
-        } catch (NoSuchElementException e) {
-            return new Response(NOT_FOUND, e.getMessage());
+            Map<String, Response> replies = new HashMap<>();
+            for (Batch.Record record : values.getRecords()) {
+                replies.put(record.getId(), record.getData() == null
+                        ? new Response(NOT_FOUND)
+                        : new Response(OK, record.getData()));
+            }
+            return replies;
+        } catch (IOException | IllegalArgumentException | RejectedExecutionException e) {
+            return Collections.emptyMap();
         }
     }
 
-    private Response processEntityDelete(@NotNull QueryParams params) {
+    /**
+     * The full value is read from one replica (preferably the local one), the rest return digests.
+     * If the newest version is known only by its digest, it is fetched from the replica which has it.
+     */
+    private Response processEntityGet(@NotNull QueryParams params) {
+        Events.FanOut event = new Events.FanOut();
+        event.begin();
+        String id = params.getId();
+        List<String> nodes = getNodesById(id, params.getFrom());
+        String primary = nodes.contains(self) ? self : nodes.get(0);
+        List<CompletableFuture<Reply>> futures = new ArrayList<>(nodes.size());
+        CompletableFuture<Reply> full = null;
+        for (String node : nodes) {
+            boolean digest = !node.equals(primary);
+            CompletableFuture<Reply> future = node.equals(self)
+                    ? local(id, () -> processInnerGet(id, digest))
+                    : supply(node, () -> read(node, id, digest));
+            futures.add(future);
+            if (!digest) {
+                full = future;
+            }
+        }
+        return collect(params, futures, full, responses -> commit(event, GET, params, responses));
+    }
+
+    /**
+     * Waits for {@code ack} replies of the key's replicas, resolves the newest value
+     * and schedules read repair once all replicas answered.
+     *
+     * @param full      the reply of the replica asked for the full value
+     * @param onReplies called with the number of replies received
+     */
+    private Response collect(@NotNull QueryParams params,
+                             @NotNull List<CompletableFuture<Reply>> futures,
+                             @NotNull CompletableFuture<Reply> full,
+                             @NotNull IntConsumer onReplies) {
         try {
-            List<String> nodes = getNodesById(params.getId(), params.getFrom());
-            executeFutures(DELETE, params, nodes, null);
+            String id = params.getId();
+            Quorum quorum = await(params, futures);
+            onReplies.accept(quorum.responses);
 
-            int ok = 0;
-            for (int i = 0; i < params.getFrom() && ok < params.getAck(); i++) {
-                try {
-                    Response resp = completionService.take().get();
-                    if (resp.getCode() == ACCEPTED) {
-                        ok++;
-                    }
-                } catch (Exception e) {
-                    return new Response(SERVER_ERROR);
+            long resolving = System.nanoTime();
+            Value value = quorum.newest == null ? null : resolve(id, quorum.newest, quorum.received, full);
+            Timings.current().add("resolve", System.nanoTime() - resolving);
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .thenRun(() -> repairStale(id, futures, value));
+            return respond(params, quorum, value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Response(SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Takes replies until {@code ack} of them are found or absent, or all replicas answered.
+     */
+    @NotNull
+    private static Quorum await(@NotNull QueryParams params,
+                                @NotNull List<CompletableFuture<Reply>> futures) throws InterruptedException {
+        long start = System.nanoTime();
+        BlockingQueue<Reply> replies = completions(futures);
+        Quorum quorum = new Quorum();
+        for (int i = 0; i < futures.size() && quorum.responses < params.getAck(); i++) {
+            Reply reply = replies.take();
+            quorum.received.add(reply);
+            if (reply.isFound()) {
+                quorum.responses++;
+                if (quorum.newest == null || reply.getValue().isNewerThan(quorum.newest.getValue())) {
+                    quorum.newest = reply;
                 }
+            } else if (reply.isAbsent()) {
+                quorum.responses++;
             }
+        }
+        Timings.current().add("replicas", System.nanoTime() - start);
+        return quorum;
+    }
 
-            if (ok < params.getAck()) {
-                return new Response(NOT_ENOUGH_REPLICAS);
-            } else {
-                return new Response(ACCEPTED);
+    @NotNull
+    private static Response respond(@NotNull QueryParams params,
+                                    @NotNull Quorum quorum,
+                                    @Nullable Value value) {
+        if (quorum.responses < params.getAck()) {
+            return new Response(NOT_ENOUGH_REPLICAS);
+        } else if (value == null || value.isTombstone()) {
+            return new Response(NOT_FOUND);
+        } else if (value.isDigest()) {
+            return new Response(NOT_ENOUGH_REPLICAS);
+        } else {
+            return new Response(OK, value.getData()).withETag(value.etag());
+        }
+    }
+
+    /**
+     * Only if neither the replies nor the full read have the payload of the newest version,
+     * it is fetched from a replica which returned the newest digest.
+     *
+     * @return the full newest value, or its digest if the full value can't be fetched
+     */
+    @NotNull
+    private Value resolve(@NotNull String id,
+                          @NotNull Reply newest,
+                          @NotNull List<Reply> received,
+                          @NotNull CompletableFuture<Reply> full) {
+        Value value = known(newest.getValue(), received, full);
+        if (!value.isDigest() || value.isTombstone()) {
+            return value;
+        }
+        fullFetches.increment();
+        for (Reply reply : received) {
+            if (reply.isFound() && reply.getValue().isSameVersion(value)) {
+                Reply fetched = new Reply(reply.node, read(reply.node, id, false));
+                if (fetched.isFound() && fetched.getValue().isSameVersion(value)) {
+                    return fetched.getValue();
+                }
             }
-        } catch (IllegalArgumentException e) {
-            return new Response(BAD_REQUEST, e.getMessage());
-        } catch (NoSuchElementException e) {
-            return new Response(NOT_FOUND, e.getMessage());
         }
+        return value;
+    }
+
+    /**
+     * Looks for the payload of the version among the replies and the full read which is still in flight.
+     *
+     * @return the full value, or the version itself if nobody returned its payload
+     */
+    @NotNull
+    private static Value known(@NotNull Value version,
+                               @NotNull List<Reply> received,
+                               @NotNull CompletableFuture<Reply> full) {
+        if (!version.isDigest() || version.isTombstone()) {
+            return version;
+        }
+        for (Reply reply : received) {
+            if (reply.isFound() && !reply.getValue().isDigest() && reply.getValue().isSameVersion(version)) {
+                return reply.getValue();
+            }
+        }
+        Reply primary = full.join();
+        if (primary.isFound() && !primary.getValue().isDigest() && primary.getValue().isSameVersion(version)) {
+            return primary.getValue();
+        }
+        return version;
     }
 
-    private void executeFutures(@NotNull HttpMethod method,
-                                @NotNull QueryParams params,
-                                @NotNull List<String> nodes,
-                                @Nullable byte[] data) {
-        String self = URL_SERVER + ":" + server.getAddress().getPort();
+    /**
+     * Compares the replies of all responded replicas once they are in
+     * and queues the newest value for every replica which is behind.
+     */
+    private void repairStale(@NotNull String id,
+                             @NotNull List<CompletableFuture<Reply>> futures,
+                             @Nullable Value resolved) {
+        Value newest = null;
+        for (CompletableFuture<Reply> future : futures) {
+            Reply reply = future.join();
+            if (reply.isFound() && (newest == null || reply.getValue().isNewerThan(newest))) {
+                newest = reply.getValue();
+            }
+        }
+        if (newest == null) {
+            return;
+        }
+        if (newest.isDigest() && !newest.isTombstone()) {
+            if (resolved == null || resolved.isDigest() || !resolved.isSameVersion(newest)) {
+                return; // the newest payload is unknown, leave it to anti-entropy
+            }
+            newest = resolved;
+        }
+        for (CompletableFuture<Reply> future : futures) {
+            Reply reply = future.join();
+            if (reply.isAbsent() || reply.isFound() && newest.isNewerThan(reply.getValue())) {
+                readRepair.schedule(reply.node, id, newest);
+            }
+        }
+    }
+
+    private Response processEntityPut(@NotNull QueryParams params,
+                                      @NotNull byte[] data,
+                                      @Nullable String ifMatch) {
+        Value value = Value.present(nextTimestamp(), params.getFrom(), data);
+        Response resp = replicate(params, value, ifMatch, CREATED);
+        coalescer.invalidate(params.getId());
+        return resp.getCode() == CREATED ? resp.withETag(value.etag()) : resp;
+    }
+
+    private Response processEntityDelete(@NotNull QueryParams params,
+                                         @Nullable String ifMatch) {
+        Value value = Value.tombstone(nextTimestamp(), params.getFrom());
+        Response resp = replicate(params, value, ifMatch, ACCEPTED);
+        coalescer.invalidate(params.getId());
+        return resp;
+    }
+
+    /**
+     * Conditional writes skip the replication batches: every replica checks {@code ifMatch} against
+     * its own version under the key lock and answers {@code 412} on mismatch. They are not hinted either,
+     * a hint would be applied unconditionally. Replicas may still disagree on the outcome,
+     * e.g. for concurrent writes, then the last write wins as usual. A value applied by some replicas
+     * is the newest one, so repair spreads it to the rest: the write took effect, just not on {@code ack}
+     * replicas yet, and is answered like any such write rather than with {@code 412}.
+     * <p>
+     * Other writes to a node the failure detector considers down are hinted right away
+     * instead of waiting in its replication queue for a request that is bound to fail.
+     *
+     * @return {@code success} if {@code ack} replicas applied the value,
+     * {@code 412} if none did because the precondition failed, {@code 504} otherwise
+     */
+    private Response replicate(@NotNull QueryParams params,
+                               @NotNull Value value,
+                               @Nullable String ifMatch,
+                               int success) {
+        Events.FanOut event = new Events.FanOut();
+        event.begin();
+        long start = System.nanoTime();
+        String id = params.getId();
+        List<String> nodes = getNodesById(id, params.getFrom());
+        byte[] data = value.toBytes();
+        List<CompletableFuture<Reply>> futures = new ArrayList<>(nodes.size());
         for (String node : nodes) {
             if (node.equals(self)) {
-                switch (method) {
-                    case GET:
-                        completionService.submit(() -> processInnerGet(params));
-                        break;
-                    case PUT:
-                        completionService.submit(() -> processInnerPut(params, data));
-                        break;
-                    case DELETE:
-                        completionService.submit(() -> processInnerDelete(params));
-                        break;
-                    default:
-                        throw new IllegalArgumentException(METHOD_IS_NOT_ALLOWED);
-                }
+                futures.add(local(id, () -> processInnerPut(id, data, ifMatch)));
+            } else if (ifMatch != null) {
+                String query = "&" + QUERY_MATCH + "=" + Http.encode(ifMatch);
+                futures.add(supply(node, () -> executeRemote(PUT, node, id, query, data)));
+            } else if (!detector.isAlive(node)) {
+                hints.hint(node, id, data);
+                futures.add(CompletableFuture.completedFuture(new Reply(node, new Response(SERVER_ERROR))));
             } else {
-                completionService.submit(
-                        () -> makeRequest(method, node + URL_INNER, "?id=" + params.getId(), data));
+                futures.add(replicationQueue(node).write(id, data).thenApply(resp -> new Reply(node, resp)));
+            }
+        }
+        BlockingQueue<Reply> replies = completions(futures);
+
+        int ok = 0;
+        int failed = 0;
+        int unavailable = 0;
+        try {
+            for (int i = 0; i < nodes.size() && ok < params.getAck(); i++) {
+                int code = replies.take().response.getCode();
+                if (code == CREATED) {
+                    ok++;
+                } else if (code == PRECONDITION_FAILED) {
+                    failed++;
+                } else if (code == SERVICE_UNAVAILABLE) {
+                    unavailable++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Response(SERVER_ERROR);
+        } finally {
+            Timings.current().add("replicas", System.nanoTime() - start);
+            commit(event, value.isTombstone() ? DELETE : PUT, params, ok);
+        }
+        if (ok >= params.getAck()) {
+            return new Response(success);
+        }
+        if (ok == 0 && failed > 0) {
+            return new Response(PRECONDITION_FAILED);
+        }
+        return unavailable > 0 ? new Response(SERVICE_UNAVAILABLE) : new Response(NOT_ENOUGH_REPLICAS);
+    }
+
+    private static void commit(@NotNull Events.FanOut event,
+                               @NotNull HttpMethod method,
+                               @NotNull QueryParams params,
+                               int replies) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = method.name();
+            event.id = params.getId();
+            event.ack = params.getAck();
+            event.from = params.getFrom();
+            event.replies = replies;
+            event.commit();
+        }
+    }
+
+    private ReplicationQueue replicationQueue(@NotNull String node) {
+        return replication.computeIfAbsent(node, n -> new ReplicationQueue(n, URL_INNER_STREAM,
+                BATCH_LINGER_MICROS, BATCH_SENDERS, (batch, resp) -> hintAll(n, batch, resp),
+                replicationBatches, replicationWrites, replicaLatency(n, POST), replicationMemory));
+    }
+
+    private void hintAll(@NotNull String node,
+                         @NotNull Batch batch,
+                         @NotNull Response resp) {
+        if (resp.isUnreachable()) {
+            detector.suspect(node);
+        }
+        for (Batch.Record record : batch.getRecords()) {
+            if (record.getData() != null) {
+                hints.hint(node, record.getId(), record.getData());
             }
         }
     }
 
-    private QueryParams parseQuery(@NotNull String query) {
+    private CompletableFuture<Reply> supply(@NotNull String node,
+                                            @NotNull Supplier<Response> request) {
+        return CompletableFuture.supplyAsync(Timings.propagate(() -> {
+            try {
+                return new Reply(node, request.get());
+            } catch (RuntimeException e) {
+                return new Reply(node, new Response(SERVER_ERROR));
+            }
+        }), fanOut);
+    }
+
+    /**
+     * Runs the request to the local replica where the storage work of the key runs.
+     */
+    private CompletableFuture<Reply> local(@NotNull String id,
+                                           @NotNull Callable<Response> request) {
+        try {
+            return Stage.supply(diskFor(id), request)
+                    .handle((resp, e) -> new Reply(self, e == null ? resp : new Response(SERVER_ERROR)));
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(new Reply(self, new Response(SERVICE_UNAVAILABLE)));
+        }
+    }
+
+    /**
+     * Replies in the order of completion, like a {@code CompletionService}.
+     */
+    private static BlockingQueue<Reply> completions(@NotNull List<CompletableFuture<Reply>> futures) {
+        BlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+        for (CompletableFuture<Reply> future : futures) {
+            future.thenAccept(replies::add);
+        }
+        return replies;
+    }
+
+    private Response read(@NotNull String node,
+                          @NotNull String id,
+                          boolean digest) {
+        if (!node.equals(self)) {
+            return executeRemote(GET, node, id, digest ? "&" + QUERY_DIGEST + "=true" : "", null);
+        }
+        try {
+            return Stage.call(diskFor(id), () -> processInnerGet(id, digest));
+        } catch (IOException e) {
+            return new Response(SERVER_ERROR);
+        } catch (RejectedExecutionException e) {
+            return new Response(SERVICE_UNAVAILABLE);
+        }
+    }
+
+    @NotNull
+    private Executor diskFor(@NotNull String id) {
+        return shards == null ? disk : shards.executor(id);
+    }
+
+    /**
+     * Runs the task with the whole batch on the disk stage, or with the part of each shard on the shard.
+     *
+     * @return the records returned by the task
+     */
+    @NotNull
+    private Batch onDisk(@NotNull Batch batch,
+                         @NotNull BatchTask task) throws IOException {
+        if (shards == null) {
+            return disk.call(() -> task.run(batch));
+        }
+        Map<Executor, Batch> parts = new HashMap<>();
+        for (Batch.Record record : batch.getRecords()) {
+            parts.computeIfAbsent(shards.executor(record.getId()), shard -> new Batch())
+                    .add(record.getId(), record.getData());
+        }
+        List<CompletableFuture<Batch>> futures = new ArrayList<>(parts.size());
+        parts.forEach((shard, part) -> futures.add(Stage.supply(shard, () -> task.run(part))));
+        Batch result = new Batch();
+        for (CompletableFuture<Batch> future : futures) {
+            for (Batch.Record record : Stage.join(future).getRecords()) {
+                result.add(record.getId(), record.getData());
+            }
+        }
+        return result;
+    }
+
+    private Response executeRemote(@NotNull HttpMethod method,
+                                   @NotNull String node,
+                                   @NotNull String id,
+                                   @NotNull String query,
+                                   @Nullable byte[] data) {
+        Events.InnerCall event = new Events.InnerCall();
+        event.begin();
+        long start = System.nanoTime();
+        Response resp = detector.isAlive(node)
+                ? Http.request(method, node + URL_INNER + "?id=" + Http.encode(id) + query, data)
+                : new Response(SERVER_ERROR);
+        replicaLatency(node, method).recordNanos(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.node = node;
+            event.method = method.name();
+            event.path = URL_INNER;
+            event.records = 1;
+            event.status = resp.getCode();
+            event.commit();
+        }
+        if (resp.isUnreachable()) {
+            detector.suspect(node);
+        }
+        return resp;
+    }
+
+    private Histogram replicaLatency(@NotNull String node, @NotNull HttpMethod method) {
+        return metrics.histogram("kv_replica_latency_seconds{node=\"" + node + "\",method=\"" + method + "\"}",
+                "Latency of requests to remote replicas");
+    }
+
+    private Response writeRepair(@NotNull String node,
+                                 @NotNull String id,
+                                 @NotNull byte[] value) {
+        if (!node.equals(self)) {
+            return Http.request(PUT, node + URL_INNER + "?id=" + Http.encode(id), value);
+        }
+        try {
+            return Stage.call(diskFor(id), () -> processInnerPut(id, value));
+        } catch (IOException e) {
+            return new Response(SERVER_ERROR);
+        } catch (RejectedExecutionException e) {
+            return new Response(SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private long nextTimestamp() {
+        return clock.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis() * 1000));
+    }
+
+    private QueryParams parseQuery(@Nullable String query) {
+        Map<String, String> params = parseParams(query);
+        return parseQuery(params.get(QUERY_ID), params.get(QUERY_REPLICAS));
+    }
+
+    private QueryParams parseQuery(@NotNull Namespaces.Namespace namespace,
+                                   @Nullable String query) {
         Map<String, String> params = parseParams(query);
         String id = params.get(QUERY_ID);
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Query is invalid");
+        }
+        return parseQuery(namespace.qualify(id), params.getOrDefault(QUERY_REPLICAS, namespace.getReplicas()));
+    }
+
+    private QueryParams parseQuery(@Nullable String id,
+                                   @Nullable String replicas) {
+        Placement current = placement;
+        int size = current.ring.size();
+        int maxFrom = current.pending == null ? size : Math.max(size, current.pending.size());
         int ack;
         int from;
-        if (params.containsKey(QUERY_REPLICAS)) {
-            String replicasParams[] = params.get(QUERY_REPLICAS).split("/");
+        if (replicas != null) {
+            String replicasParams[] = replicas.split("/");
             ack = Integer.valueOf(replicasParams[0]);
             from = Integer.valueOf(replicasParams[1]);
         } else {
-            ack = topology.size() / 2 + 1;
-            from = topology.size();
+            ack = size / 2 + 1;
+            from = size;
         }
 
-        if (id == null || "".equals(id) || ack < 1 || from < 1 || ack > from) {
+        if (id == null || "".equals(id) || ack < 1 || from < 1 || ack > from || from > maxFrom) {
             throw new IllegalArgumentException("Query is invalid");
         }
 
         return new QueryParams(id, ack, from);
     }
 
-    private Map<String, String> parseParams(@NotNull String query) {
+    private String parseNode(@NotNull Map<String, String> params) {
+        String node = params.get(QUERY_NODE);
+        if (node == null || !node.startsWith("http://")) {
+            throw new IllegalArgumentException("Node is invalid");
+        }
+        return node;
+    }
+
+    private String parseName(@NotNull Map<String, String> params) {
+        String name = params.get(QUERY_NAME);
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Name is invalid");
+        }
+        return name;
+    }
+
+    private int parseSegment(@NotNull Map<String, String> params) {
+        Integer segment = AntiEntropy.parseSegment(params.get(QUERY_SEGMENT));
+        if (segment == null) {
+            throw new IllegalArgumentException("Segment is invalid");
+        }
+        return segment;
+    }
+
+    /**
+     * @return all distinct {@code id} parameters in their order
+     */
+    private Set<String> parseIds(@Nullable String query) {
+        if (query == null) {
+            throw new IllegalArgumentException("Query is invalid");
+        }
+        try {
+            Set<String> ids = new LinkedHashSet<>();
+            for (String param : query.split("&")) {
+                int idx = param.indexOf("=");
+                if (URLDecoder.decode(param.substring(0, idx), "UTF-8").equals(QUERY_ID)) {
+                    ids.add(URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+                }
+            }
+            return ids;
+        } catch (UnsupportedEncodingException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Query is invalid");
+        }
+    }
+
+    private Map<String, String> parseParams(@Nullable String query) {
+        if (query == null) {
+            throw new IllegalArgumentException("Query is invalid");
+        }
         try {
             Map<String, String> params = new LinkedHashMap<>();
             for (String param : query.split("&")) {
@@ -319,80 +1615,269 @@ public class KVServiceImpl implements KVService {
                         URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
             }
             return params;
-        } catch (UnsupportedEncodingException e) {
+        } catch (UnsupportedEncodingException | IndexOutOfBoundsException e) {
             throw new IllegalArgumentException("Query is invalid");
         }
     }
 
+    /**
+     * While a topology change is in progress both old and new owners serve the key.
+     */
     private List<String> getNodesById(@NotNull String id, int from) {
-        List<String> nodes = new ArrayList<>();
-        int hash = Math.abs(id.hashCode());
-        for (int i = 0; i < from; i++) {
-            int idx = (hash + i) % topology.size();
-            nodes.add(topology.get(idx));
+        Placement current = placement;
+        List<String> nodes = current.ring.getNodes(id, from);
+        if (current.pending != null) {
+            for (String node : current.pending.getNodes(id, from)) {
+                if (!nodes.contains(node)) {
+                    nodes.add(node);
+                }
+            }
         }
         return nodes;
     }
 
-    private byte[] readData(@NotNull InputStream is) throws IOException {
-        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            for (int len; (len = is.read(buffer, 0, BUFFER_SIZE)) != -1; ) {
-                os.write(buffer, 0, len);
+    @Nullable
+    private ConsistentHashRing getStableRing() {
+        Placement current = placement;
+        return current.pending == null ? current.ring : null;
+    }
+
+    private Collection<String> getAllNodes() {
+        Placement current = placement;
+        Set<String> nodes = new HashSet<>(current.ring.getNodes());
+        if (current.pending != null) {
+            nodes.addAll(current.pending.getNodes());
+        }
+        return nodes;
+    }
+
+    private static File directory(@NotNull File parent, @NotNull String name) throws IOException {
+        File dir = new File(parent, name);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        return dir;
+    }
+
+    private String describe(@NotNull Placement current) {
+        StringBuilder sb = new StringBuilder();
+        for (String node : current.ring.getNodes()) {
+            sb.append(node).append('\n');
+        }
+        if (current.pending != null) {
+            sb.append("pending:\n");
+            for (String node : current.pending.getNodes()) {
+                sb.append(node).append('\n');
             }
-            os.flush();
-            return os.toByteArray();
+        }
+        return sb.toString();
+    }
+
+    private static void describe(@NotNull StringBuilder sb,
+                                 @NotNull HotKeys keys) {
+        double seconds = keys.getWindowMillis() / 1000.0;
+        for (Map.Entry<String, Long> entry : keys.top()) {
+            sb.append(String.format(Locale.ROOT, "%.2f", entry.getValue() / seconds))
+                    .append('\t').append(entry.getKey()).append('\n');
         }
     }
 
-    private Response makeRequest(@NotNull HttpMethod method,
-                                 @NotNull String link,
-                                 @NotNull String params,
-                                 @Nullable byte[] data) {
-        HttpURLConnection conn = null;
+    /**
+     * Reads the request body, decoding its {@code Content-Encoding}.
+     * The memory is reserved before it is allocated: at once for a body of known length, else by chunks.
+     *
+     * @throws MemoryBudget.ExhaustedException if the request memory is exhausted
+     */
+    @NotNull
+    private byte[] readBody(@NotNull HttpExchange http) throws IOException {
+        String encoding = http.getRequestHeaders().getFirst(Compression.HEADER_CONTENT_ENCODING);
+        String length = http.getRequestHeaders().getFirst(HEADER_CONTENT_LENGTH);
+        byte[] encoded;
+        if (length == null) {
+            encoded = readReserved(http.getRequestBody());
+        } else {
+            int declared = parseLength(length);
+            reserve(declared);
+            encoded = Http.readData(http.getRequestBody(), declared);
+        }
+        if (encoding == null) {
+            return encoded;
+        }
+        byte[] body;
         try {
-            URL url = new URL(link + params);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod(method.toString());
-            conn.setDoOutput(method == PUT);
-            conn.connect();
+            body = readReserved(Compression.decode(new ByteArrayInputStream(encoded), encoding));
+        } catch (ZipException | EOFException e) {
+            throw new IllegalArgumentException("Body is corrupted");
+        }
+        compressionInEncoded.add(encoded.length);
+        compressionInRaw.add(body.length);
+        return body;
+    }
 
-            if (method == PUT) {
-                conn.getOutputStream().write(data);
-                conn.getOutputStream().flush();
-                conn.getOutputStream().close();
-            }
+    @NotNull
+    private byte[] readReserved(@NotNull InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BODY_CHUNK];
+        for (int len; (len = is.read(buffer)) != -1; ) {
+            // the output stream may hold up to twice the data while it grows
+            reserve(2L * len);
+            os.write(buffer, 0, len);
+        }
+        return os.toByteArray();
+    }
 
-            int code = conn.getResponseCode();
-            if (method == GET && code == OK) {
-                InputStream dataStream = conn.getInputStream();
-                byte[] inputData = readData(dataStream);
-                return new Response(code, inputData);
+    private void reserve(long bytes) {
+        requestMemory.reserve(bytes);
+        requestReserved.get()[0] += bytes;
+    }
+
+    private static int parseLength(@NotNull String length) {
+        try {
+            int value = Integer.parseInt(length.trim());
+            if (value >= 0) {
+                return value;
             }
-            return new Response(code);
-        } catch (IOException e) {
-            return new Response(SERVER_ERROR);
-        } finally {
-            if (conn != null) conn.disconnect();
+        } catch (NumberFormatException e) {
+            // invalid
         }
+        throw new IllegalArgumentException("Content-Length is invalid");
+    }
+
+    private void sendUnavailable(@NotNull HttpExchange http,
+                                 @NotNull String message) throws IOException {
+        // the body may be left unread, the connection can't be reused
+        http.getResponseHeaders().add(HEADER_CONNECTION, "close");
+        sendResponse(http, new Response(SERVICE_UNAVAILABLE, message));
     }
 
     private void sendResponse(@NotNull HttpExchange http,
                               @NotNull Response resp) throws IOException {
-        if (resp.hasData()) {
-            http.sendResponseHeaders(resp.getCode(), resp.getData().length);
-            http.getResponseBody().write(resp.getData());
+        metrics.counter("kv_responses_total{endpoint=\"" + http.getHttpContext().getPath()
+                + "\",code=\"" + resp.getCode() + "\"}", "Responses by status code").increment();
+        if (resp.getCode() == NOT_ENOUGH_REPLICAS) {
+            notEnoughReplicas.increment();
+        }
+        byte[] body = resp.getData();
+        String encoding = null;
+        if (body != null) {
+            String accepted = http.getRequestHeaders().getFirst(Compression.HEADER_ACCEPT_ENCODING);
+            encoding = Compression.negotiate(accepted, body.length);
+            if (encoding != null) {
+                long start = System.nanoTime();
+                compressionOutRaw.add(body.length);
+                body = Compression.encode(body, encoding);
+                compressionOutEncoded.add(body.length);
+                long nanos = System.nanoTime() - start;
+                compressionLatency.recordNanos(nanos);
+                Timings.current().add("compress", nanos);
+                http.getResponseHeaders().add(Compression.HEADER_CONTENT_ENCODING, encoding);
+            } else if (accepted != null && body.length < Compression.MIN_BYTES) {
+                uncompressed.increment();
+            }
+            http.getResponseHeaders().add(HEADER_VARY, Compression.HEADER_ACCEPT_ENCODING);
+        }
+        if (resp.getCode() == SERVICE_UNAVAILABLE) {
+            http.getResponseHeaders().add(HEADER_RETRY_AFTER, RETRY_AFTER_SECONDS);
+        }
+        if (resp.getETag() != null) {
+            // the encoded representation is only semantically equivalent
+            http.getResponseHeaders().add(HEADER_ETAG, encoding == null ? resp.getETag() : "W/" + resp.getETag());
+        }
+        if (SERVER_TIMING || http.getRequestHeaders().containsKey(HEADER_SERVER_TIMING_REQUEST)) {
+            // the write itself goes after the header, it's only in the event and the histogram
+            http.getResponseHeaders().add(HEADER_SERVER_TIMING, Timings.current().toHeader());
+        }
+        Events.ResponseWrite event = new Events.ResponseWrite();
+        event.begin();
+        long start = System.nanoTime();
+        if (body != null) {
+            http.sendResponseHeaders(resp.getCode(), body.length);
+            http.getResponseBody().write(body);
         } else {
-            http.sendResponseHeaders(resp.getCode(), 0);
+            http.sendResponseHeaders(resp.getCode(), resp.getCode() == NOT_MODIFIED ? -1 : 0);
         }
         http.close();
+        writeLatency.recordNanos(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = http.getHttpContext().getPath();
+            event.status = resp.getCode();
+            event.bytes = body == null ? 0 : body.length;
+            event.commit();
+        }
+    }
+
+    private static final class Quorum {
+
+        @NotNull
+        private final List<Reply> received = new ArrayList<>();
+        private int responses;
+        @Nullable
+        private Reply newest;
+    }
+
+    private static final class Reply {
+
+        @NotNull
+        private final String node;
+        @NotNull
+        private final Response response;
+        @Nullable
+        private final Value value;
+
+        private Reply(@NotNull String node, @NotNull Response response) {
+            this.node = node;
+            this.response = response;
+            this.value = response.getCode() == OK ? parse(response.getData()) : null;
+        }
+
+        boolean isFound() {
+            return value != null;
+        }
+
+        boolean isAbsent() {
+            return response.getCode() == NOT_FOUND;
+        }
+
+        @NotNull
+        Value getValue() {
+            if (value == null) {
+                throw new NoSuchElementException("Replica " + node + " has no value");
+            }
+            return value;
+        }
+
+        @Nullable
+        private static Value parse(@Nullable byte[] data) {
+            try {
+                return data == null ? null : Value.fromBytes(data);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
     }
 
-    enum HttpMethod {
+    private interface BatchTask {
+
+        @NotNull
+        Batch run(@NotNull Batch part) throws IOException;
+    }
 
-        GET,
-        PUT,
-        DELETE
+    private enum Priority {
+        INNER, CLIENT, BACKGROUND
+    }
 
+    private static final class Placement {
+
+        @NotNull
+        private final ConsistentHashRing ring;
+        @Nullable
+        private final ConsistentHashRing pending;
+
+        private Placement(@NotNull ConsistentHashRing ring,
+                          @Nullable ConsistentHashRing pending) {
+            this.ring = ring;
+            this.pending = pending;
+        }
     }
 }
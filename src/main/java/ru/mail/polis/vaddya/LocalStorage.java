@@ -0,0 +1,132 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Versioned view of the local {@link DAO}: writes are applied only if they are newer
+ * than what is already stored, so replication, streaming and repair may race freely.
+ */
+class LocalStorage {
+
+    private static final int LOCK_STRIPES = 256;
+
+    @NotNull
+    private final DAO dao;
+    @NotNull
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    @NotNull
+    private final Histogram getLatency;
+    @NotNull
+    private final Histogram upsertLatency;
+    @NotNull
+    private final Histogram deleteLatency;
+
+    LocalStorage(@NotNull DAO dao, @NotNull Metrics metrics) {
+        this.dao = dao;
+        this.getLatency = metrics.histogram("kv_dao_latency_seconds{op=\"get\"}", "DAO operation latency");
+        this.upsertLatency = metrics.histogram("kv_dao_latency_seconds{op=\"upsert\"}", "DAO operation latency");
+        this.deleteLatency = metrics.histogram("kv_dao_latency_seconds{op=\"delete\"}", "DAO operation latency");
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Nullable
+    Value get(@NotNull String id) throws IOException {
+        Events.Dao event = new Events.Dao();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            return Value.fromStored(dao.get(id));
+        } catch (NoSuchElementException e) {
+            return null;
+        } finally {
+            finish(event, "get", id, getLatency, start);
+        }
+    }
+
+    /**
+     * @return {@code true} if the value was written, {@code false} if a newer one is already stored
+     */
+    boolean apply(@NotNull String id, @NotNull Value value) throws IOException {
+        synchronized (lockFor(id)) {
+            Value current = get(id);
+            if (current != null && !value.isNewerThan(current)) {
+                return false;
+            }
+            Events.Dao event = new Events.Dao();
+            event.begin();
+            long start = System.nanoTime();
+            dao.upsert(id, value.toBytes());
+            finish(event, "upsert", id, upsertLatency, start);
+            return true;
+        }
+    }
+
+    /**
+     * Compare-and-set: applies the value only if the stored one is present and matches {@code ifMatch}.
+     *
+     * @return {@code false} if the precondition failed
+     */
+    boolean applyIfMatch(@NotNull String id,
+                         @NotNull Value value,
+                         @NotNull String ifMatch) throws IOException {
+        synchronized (lockFor(id)) {
+            Value current = get(id);
+            if (current == null || current.isTombstone() || !Http.matches(ifMatch, current.etag(), false)) {
+                return false;
+            }
+            apply(id, value);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the local copy unless it was overwritten after the value of {@code timestamp} had been read.
+     */
+    void remove(@NotNull String id, long timestamp) throws IOException {
+        synchronized (lockFor(id)) {
+            Value current = get(id);
+            if (current != null && current.getTimestamp() == timestamp) {
+                Events.Dao event = new Events.Dao();
+                event.begin();
+                long start = System.nanoTime();
+                dao.delete(id);
+                finish(event, "delete", id, deleteLatency, start);
+            }
+        }
+    }
+
+    /**
+     * The stream must be closed by the caller.
+     */
+    @NotNull
+    Stream<String> keys() throws IOException {
+        return dao.keys();
+    }
+
+    private static void finish(@NotNull Events.Dao event,
+                               @NotNull String operation,
+                               @NotNull String id,
+                               @NotNull Histogram latency,
+                               long start) {
+        long nanos = System.nanoTime() - start;
+        latency.recordNanos(nanos);
+        Timings.current().add("dao", nanos);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.id = id;
+            event.commit();
+        }
+    }
+
+    private Object lockFor(@NotNull String id) {
+        return locks[(id.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+}
@@ -0,0 +1,122 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accountant of the heap held by request bodies, queued replica writes and caches.
+ * <p>
+ * Components reserve bytes before they allocate and release them once the memory is garbage.
+ * Each component has its own limit and all of them share the total, so a burst of large requests
+ * is rejected instead of running the node out of memory and starving the others.
+ * The accounting is of payloads, not of the exact heap footprint.
+ */
+final class MemoryBudget {
+
+    private final long total;
+    @NotNull
+    private final AtomicLong used = new AtomicLong();
+    @NotNull
+    private final Metrics metrics;
+
+    MemoryBudget(long total, @NotNull Metrics metrics) {
+        this.total = total;
+        this.metrics = metrics;
+        metrics.gauge("kv_memory_used_bytes{component=\"total\"}", "Memory reserved by a component", used::get);
+        metrics.gauge("kv_memory_limit_bytes{component=\"total\"}", "Memory a component may reserve", () -> total);
+    }
+
+    @NotNull
+    Component component(@NotNull String name, long limit) {
+        return new Component(name, Math.min(limit, total));
+    }
+
+    final class Component {
+
+        private final long limit;
+        @NotNull
+        private final AtomicLong reserved = new AtomicLong();
+        @NotNull
+        private final LongAdder rejected;
+
+        private Component(@NotNull String name, long limit) {
+            this.limit = limit;
+            String label = "{component=\"" + name + "\"}";
+            this.rejected = metrics.counter("kv_memory_rejected_total" + label,
+                    "Reservations rejected because the component or the total budget is exhausted");
+            metrics.gauge("kv_memory_used_bytes" + label, "Memory reserved by a component", reserved::get);
+            metrics.gauge("kv_memory_limit_bytes" + label, "Memory a component may reserve", () -> limit);
+        }
+
+        /**
+         * @return {@code false} if the component or the total budget has no room for {@code bytes}
+         */
+        boolean tryReserve(long bytes) {
+            if (!tryReserveQuietly(bytes)) {
+                rejected.increment();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Like {@link #tryReserve} but a miss is not counted as rejected,
+         * for callers that free memory of their own and retry, e.g. caches evicting.
+         */
+        boolean tryReserveQuietly(long bytes) {
+            if (bytes <= 0) {
+                return true;
+            }
+            if (!add(reserved, bytes, limit)) {
+                return false;
+            }
+            if (!add(used, bytes, total)) {
+                reserved.addAndGet(-bytes);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @throws ExhaustedException if there is no room for {@code bytes}
+         */
+        void reserve(long bytes) {
+            if (!tryReserve(bytes)) {
+                throw new ExhaustedException();
+            }
+        }
+
+        void release(long bytes) {
+            if (bytes > 0) {
+                reserved.addAndGet(-bytes);
+                used.addAndGet(-bytes);
+            }
+        }
+    }
+
+    private static boolean add(@NotNull AtomicLong counter, long bytes, long max) {
+        for (long current; ; ) {
+            current = counter.get();
+            if (current + bytes > max) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The request can't be served now, it is to be answered with {@code 503}.
+     */
+    static final class ExhaustedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ExhaustedException() {
+            super("Memory budget is exhausted", null, false, false);
+        }
+    }
+}
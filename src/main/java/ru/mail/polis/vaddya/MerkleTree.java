@@ -0,0 +1,92 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Complete binary hash tree over a fixed number of leaves, stored in heap order.
+ * <p>
+ * Leaf hashes are order independent (XOR of entry hashes), so trees can be built
+ * while scanning keys in any order.
+ */
+final class MerkleTree {
+
+    @NotNull
+    private final long[] nodes;
+    private final int leaves;
+
+    private MerkleTree(@NotNull long[] nodes) {
+        this.nodes = nodes;
+        this.leaves = (nodes.length + 1) / 2;
+    }
+
+    /**
+     * @param leaves leaf hashes, the count must be a power of two
+     */
+    @NotNull
+    static MerkleTree build(@NotNull long[] leaves) {
+        if (Integer.bitCount(leaves.length) != 1) {
+            throw new IllegalArgumentException("Leaves count must be a power of two");
+        }
+        long[] nodes = new long[2 * leaves.length - 1];
+        System.arraycopy(leaves, 0, nodes, leaves.length - 1, leaves.length);
+        for (int i = leaves.length - 2; i >= 0; i--) {
+            nodes[i] = Hash.mix64(nodes[2 * i + 1] * 31 + nodes[2 * i + 2]);
+        }
+        return new MerkleTree(nodes);
+    }
+
+    /**
+     * Covers the content as well: replicas may hold different values under one timestamp,
+     * e.g. on clock ties or after a bulk load, and must still be told apart.
+     */
+    static long hashEntry(@NotNull String id, @NotNull Value value) {
+        long version = value.getTimestamp() * 0x9e3779b97f4a7c15L ^ (value.isTombstone() ? 1 : 0);
+        return Hash.mix64(Hash.hash64(id) ^ version ^ Hash.mix64(value.contentHash()));
+    }
+
+    @NotNull
+    static MerkleTree fromBytes(@NotNull byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] nodes = new long[bytes.length / Long.BYTES];
+        buffer.asLongBuffer().get(nodes);
+        return new MerkleTree(nodes);
+    }
+
+    @NotNull
+    byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(nodes.length * Long.BYTES);
+        buffer.asLongBuffer().put(nodes);
+        return buffer.array();
+    }
+
+    /**
+     * Walks both trees from the root and descends only into differing subtrees.
+     *
+     * @return indices of differing leaves
+     */
+    @NotNull
+    List<Integer> diff(@NotNull MerkleTree other) {
+        if (other.nodes.length != nodes.length) {
+            throw new IllegalArgumentException("Trees have different shapes");
+        }
+        List<Integer> result = new ArrayList<>();
+        diff(other, 0, result);
+        return result;
+    }
+
+    private void diff(@NotNull MerkleTree other, int node, @NotNull List<Integer> result) {
+        if (nodes[node] == other.nodes[node]) {
+            return;
+        }
+        if (node >= leaves - 1) {
+            result.add(node - (leaves - 1));
+        } else {
+            diff(other, 2 * node + 1, result);
+            diff(other, 2 * node + 2, result);
+        }
+    }
+}
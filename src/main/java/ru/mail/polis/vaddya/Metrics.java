@@ -0,0 +1,115 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and latency summaries rendered in Prometheus text format.
+ * <p>
+ * A metric name may carry labels, e.g. {@code kv_requests_total{method="GET"}};
+ * metrics sharing the name before {@code {} form one family.
+ * Getting a metric which already exists returns it, so call sites may look metrics up by labels.
+ */
+final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    @NotNull
+    LongAdder counter(@NotNull String name, @NotNull String help) {
+        return family(name, help, "counter").metrics.computeIfAbsent(name, n -> {
+            LongAdder adder = new LongAdder();
+            return new Metric(adder::sum, adder, null);
+        }).adder;
+    }
+
+    void gauge(@NotNull String name, @NotNull String help, @NotNull LongSupplier value) {
+        family(name, help, "gauge").metrics.put(name, new Metric(value, null, null));
+    }
+
+    /**
+     * Latency summary with quantiles, {@code _sum} and {@code _count} in seconds,
+     * so both the average and the throughput can be derived from it.
+     */
+    @NotNull
+    Histogram histogram(@NotNull String name, @NotNull String help) {
+        return family(name, help, "summary").metrics
+                .computeIfAbsent(name, n -> new Metric(null, null, new Histogram())).histogram;
+    }
+
+    @NotNull
+    String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            sb.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Metric> metric : family.metrics.entrySet()) {
+                Histogram histogram = metric.getValue().histogram;
+                if (histogram == null) {
+                    sb.append(metric.getKey()).append(' ').append(metric.getValue().value.getAsLong()).append('\n');
+                } else {
+                    summary(sb, entry.getKey(), metric.getKey(), histogram);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void summary(@NotNull StringBuilder sb,
+                                @NotNull String familyName,
+                                @NotNull String name,
+                                @NotNull Histogram histogram) {
+        String labels = name.substring(familyName.length());
+        String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        for (double quantile : QUANTILES) {
+            sb.append(familyName).append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.quantile(quantile))).append('\n');
+        }
+        sb.append(familyName).append("_sum").append(labels).append(' ')
+                .append(seconds(histogram.getSum())).append('\n');
+        sb.append(familyName).append("_count").append(labels).append(' ')
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+    @NotNull
+    private Family family(@NotNull String name, @NotNull String help, @NotNull String type) {
+        int idx = name.indexOf('{');
+        String familyName = idx < 0 ? name : name.substring(0, idx);
+        return families.computeIfAbsent(familyName, n -> new Family(help, type));
+    }
+
+    private static final class Family {
+
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final class Metric {
+
+        private final LongSupplier value;
+        private final LongAdder adder;
+        private final Histogram histogram;
+
+        private Metric(LongSupplier value, LongAdder adder, Histogram histogram) {
+            this.value = value;
+            this.adder = adder;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Routes IDs to the DAO of their namespace, each namespace is a separate DAO in its own directory.
+ * <p>
+ * Inside the cluster a key of a namespace is the qualified ID {@code name/id}, so replication, hints,
+ * repair and streaming need not know about namespaces. Other IDs go to the entities DAO.
+ * Client IDs never contain the separator (see {@link #isPlain}), so a plain ID can't reach
+ * a namespace and no ID of a namespace collides with a plain one.
+ * <p>
+ * Namespaces are configured by {@code highload.kv.namespaces} identically on every node, e.g.
+ * {@code meta:cache=16777216,replicas=3/3;blobs:compress=true}, where {@code cache} is the budget
+ * of the value cache in bytes (all caches share the cache memory of the node as well), {@code compress}
+ * turns on compression of stored values and {@code replicas} is the default {@code ack/from} of requests
+ * to the namespace.
+ */
+final class Namespaces implements DAO {
+
+    static final String DIR = "namespaces";
+
+    private static final char SEPARATOR = '/';
+    private static final Pattern NAME = Pattern.compile("[a-z0-9_-]+");
+
+    @NotNull
+    private final DAO entities;
+    @NotNull
+    private final Map<String, Namespace> namespaces = new LinkedHashMap<>();
+
+    Namespaces(@NotNull DAO entities,
+               @NotNull File dir,
+               @NotNull String spec,
+               @NotNull MemoryBudget.Component cacheMemory,
+               @NotNull Metrics metrics) throws IOException {
+        this.entities = entities;
+        for (String definition : spec.split(";")) {
+            if (definition.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = definition.trim().split(":", 2);
+            String name = parts[0];
+            if (!NAME.matcher(name).matches() || namespaces.containsKey(name)) {
+                throw new IllegalArgumentException("Namespace name is invalid: " + name);
+            }
+            Map<String, String> options = new LinkedHashMap<>();
+            if (parts.length > 1) {
+                for (String option : parts[1].split(",")) {
+                    String[] pair = option.split("=", 2);
+                    if (pair.length != 2) {
+                        throw new IllegalArgumentException("Namespace option is invalid: " + option);
+                    }
+                    options.put(pair[0].trim(), pair[1].trim());
+                }
+            }
+            namespaces.put(name, new Namespace(name, dir, options, cacheMemory, metrics));
+        }
+    }
+
+    /**
+     * @return {@code false} if the client ID could be taken for a qualified one
+     */
+    static boolean isPlain(@NotNull String id) {
+        return id.indexOf(SEPARATOR) < 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the client ID could be taken for a qualified one
+     */
+    static void checkId(@NotNull String id) {
+        if (!isPlain(id)) {
+            throw new IllegalArgumentException("ID must not contain '" + SEPARATOR + "'");
+        }
+    }
+
+    /**
+     * @return the directories of the namespaces relative to the parent of the namespaces directory
+     */
+    @NotNull
+    List<String> directories() {
+        List<String> dirs = new ArrayList<>(namespaces.size());
+        for (String name : namespaces.keySet()) {
+            dirs.add(DIR + "/" + name);
+        }
+        return dirs;
+    }
+
+    /**
+     * @return the namespace or {@code null} if there is no such one
+     */
+    @Nullable
+    Namespace namespace(@NotNull String name) {
+        return namespaces.get(name);
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException {
+        Namespace namespace = namespaceOf(id);
+        return namespace == null ? entities.get(id) : namespace.dao.get(namespace.unqualify(id));
+    }
+
+    @Override
+    public void upsert(@NotNull String id, @NotNull byte[] value) throws IllegalArgumentException, IOException {
+        Namespace namespace = namespaceOf(id);
+        if (namespace == null) {
+            entities.upsert(id, value);
+        } else {
+            namespace.dao.upsert(namespace.unqualify(id), value);
+        }
+    }
+
+    @Override
+    public void delete(@NotNull String id) throws IllegalArgumentException, IOException {
+        Namespace namespace = namespaceOf(id);
+        if (namespace == null) {
+            entities.delete(id);
+        } else {
+            namespace.dao.delete(namespace.unqualify(id));
+        }
+    }
+
+    @NotNull
+    @Override
+    public Stream<String> keys() throws IOException {
+        Stream<String> keys = entities.keys();
+        try {
+            for (Namespace namespace : namespaces.values()) {
+                keys = Stream.concat(keys, namespace.dao.keys().map(namespace::qualify));
+            }
+            return keys;
+        } catch (IOException e) {
+            keys.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the namespace of the ID, {@code null} for the entities
+     */
+    @Nullable
+    private Namespace namespaceOf(@NotNull String id) {
+        int idx = id.indexOf(SEPARATOR);
+        return idx < 0 ? null : namespaces.get(id.substring(0, idx));
+    }
+
+    static final class Namespace {
+
+        @NotNull
+        private final String name;
+        @NotNull
+        private final DAO dao;
+        @Nullable
+        private final String replicas;
+
+        private Namespace(@NotNull String name,
+                          @NotNull File root,
+                          @NotNull Map<String, String> options,
+                          @NotNull MemoryBudget.Component cacheMemory,
+                          @NotNull Metrics metrics) throws IOException {
+            this.name = name;
+            this.replicas = options.remove("replicas");
+            File dir = new File(root, name);
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            DAO dao = new DAOImpl(dir.getPath());
+            if (Boolean.parseBoolean(options.remove("compress"))) {
+                dao = new CompressingDAO(dao);
+            }
+            String cache = options.remove("cache");
+            if (cache != null && Long.parseLong(cache) > 0) {
+                String label = "{namespace=\"" + name + "\"}";
+                CachingDAO caching = new CachingDAO(dao, Long.parseLong(cache), cacheMemory,
+                        metrics.counter("kv_namespace_cache_hits_total" + label, "Value cache hits"),
+                        metrics.counter("kv_namespace_cache_misses_total" + label, "Value cache misses"));
+                metrics.gauge("kv_namespace_cache_bytes" + label, "Size of cached values", caching::size);
+                dao = caching;
+            }
+            if (!options.isEmpty()) {
+                throw new IllegalArgumentException("Namespace options are unknown: " + options.keySet());
+            }
+            this.dao = dao;
+        }
+
+        /**
+         * @return the default {@code ack/from} or {@code null} for the cluster default
+         */
+        @Nullable
+        String getReplicas() {
+            return replicas;
+        }
+
+        @NotNull
+        String qualify(@NotNull String id) {
+            return name + SEPARATOR + id;
+        }
+
+        @NotNull
+        private String unqualify(@NotNull String id) {
+            return id.substring(name.length() + 1);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ru.mail.polis.vaddya;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking token bucket without bursts: permits are handed out evenly at {@code permitsPerSecond}.
+ */
+class RateLimiter {
+
+    private final double nanosPerPermit;
+    private long nextFreeNanos = System.nanoTime();
+
+    RateLimiter(long permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        this.nanosPerPermit = (double) TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    }
+
+    void acquire(long permits) throws InterruptedException {
+        long wait = reserve(permits);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private synchronized long reserve(long permits) {
+        long now = System.nanoTime();
+        if (nextFreeNanos < now) {
+            nextFreeNanos = now;
+        }
+        long wait = nextFreeNanos - now;
+        nextFreeNanos += (long) (permits * nanosPerPermit);
+        return wait;
+    }
+}
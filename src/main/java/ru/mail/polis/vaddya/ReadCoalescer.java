@@ -0,0 +1,81 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Single-flight for coordinator reads: a GET joins an in-flight read of the same ID with the same
+ * {@code from} and at least the same {@code ack} instead of fanning out on its own.
+ * <p>
+ * A read that started before a write completed may miss it, so writes coordinated by this node
+ * {@link #invalidate} in-flight reads of their ID and later GETs start a fresh read.
+ */
+class ReadCoalescer {
+
+    @NotNull
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    @NotNull
+    private final LongAdder leaders;
+    @NotNull
+    private final LongAdder followers;
+
+    ReadCoalescer(@NotNull Metrics metrics) {
+        this.leaders = metrics.counter("kv_get_coalescing_total{role=\"leader\"}",
+                "GETs which issued a replica read (leader) or joined one in flight (follower)");
+        this.followers = metrics.counter("kv_get_coalescing_total{role=\"follower\"}",
+                "GETs which issued a replica read (leader) or joined one in flight (follower)");
+        metrics.gauge("kv_get_flights", "Replica reads in flight which GETs may join", flights::size);
+    }
+
+    @NotNull
+    Response read(@NotNull QueryParams params,
+                  @NotNull Function<QueryParams, Response> reader) {
+        Flight flight = new Flight(params);
+        Flight current = flights.putIfAbsent(params.getId(), flight);
+        if (current != null) {
+            if (current.covers(params)) {
+                followers.increment();
+                return current.result.join();
+            }
+            leaders.increment();
+            return reader.apply(params);
+        }
+
+        leaders.increment();
+        try {
+            Response resp = reader.apply(params);
+            flight.result.complete(resp);
+            return resp;
+        } catch (RuntimeException e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(params.getId(), flight);
+        }
+    }
+
+    void invalidate(@NotNull String id) {
+        flights.remove(id);
+    }
+
+    private static final class Flight {
+
+        private final int ack;
+        private final int from;
+        private final CompletableFuture<Response> result = new CompletableFuture<>();
+
+        private Flight(@NotNull QueryParams params) {
+            this.ack = params.getAck();
+            this.from = params.getFrom();
+        }
+
+        private boolean covers(@NotNull QueryParams params) {
+            return from == params.getFrom() && ack >= params.getAck();
+        }
+    }
+}
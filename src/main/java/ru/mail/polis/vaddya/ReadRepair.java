@@ -0,0 +1,98 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ru.mail.polis.vaddya.Response.CREATED;
+
+/**
+ * Sends the newest value to stale replicas from a bounded queue, off the request path.
+ * <p>
+ * Repairs are rate limited; when the queue is full new repairs are dropped and left to anti-entropy.
+ */
+class ReadRepair {
+
+    @NotNull
+    private final BlockingQueue<Task> queue;
+    @NotNull
+    private final RateLimiter limiter;
+    @NotNull
+    private final Writer writer;
+    @NotNull
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+    private final LongAdder scheduled;
+    private final LongAdder repaired;
+    private final LongAdder failed;
+    private final LongAdder dropped;
+
+    ReadRepair(int capacity,
+               @NotNull RateLimiter limiter,
+               @NotNull Writer writer,
+               @NotNull Metrics metrics) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.limiter = limiter;
+        this.writer = writer;
+        this.scheduled = metrics.counter("kv_read_repair_scheduled_total", "Repairs of stale replicas queued");
+        this.repaired = metrics.counter("kv_read_repair_done_total", "Repairs acknowledged by replicas");
+        this.failed = metrics.counter("kv_read_repair_failed_total", "Repairs rejected or not delivered");
+        this.dropped = metrics.counter("kv_read_repair_dropped_total", "Repairs dropped on queue overflow");
+        metrics.gauge("kv_read_repair_queue_size", "Repairs waiting in the queue", queue::size);
+    }
+
+    void start() {
+        worker.execute(this::run);
+    }
+
+    void stop() {
+        worker.shutdownNow();
+    }
+
+    void schedule(@NotNull String node, @NotNull String id, @NotNull Value value) {
+        if (queue.offer(new Task(node, id, value))) {
+            scheduled.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task = queue.take();
+                limiter.acquire(1);
+                if (writer.write(task.node, task.id, task.value.toBytes()).getCode() == CREATED) {
+                    repaired.increment();
+                } else {
+                    failed.increment();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    interface Writer {
+        @NotNull
+        Response write(@NotNull String node, @NotNull String id, @NotNull byte[] value);
+    }
+
+    private static final class Task {
+
+        private final String node;
+        private final String id;
+        private final Value value;
+
+        private Task(String node, String id, Value value) {
+            this.node = node;
+            this.id = id;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ru.mail.polis.vaddya.Response.SERVER_ERROR;
+import static ru.mail.polis.vaddya.Response.SERVICE_UNAVAILABLE;
+
+/**
+ * Gathers replica writes of concurrent requests to one peer into {@link Batch}es.
+ * <p>
+ * A sender takes the first pending write, waits up to {@code linger} for more and flushes
+ * when the batch is full or the linger expires. Every write completes with the status of its batch.
+ * Writes of a batch the peer didn't get are handed to {@code onFailure}, e.g. to keep them as hints.
+ * Queued values are accounted in {@code memory}, a write it has no room for is rejected with {@code 503}.
+ */
+class ReplicationQueue {
+
+    private static final int MAX_BATCH_WRITES = 256;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    @NotNull
+    private final String node;
+    @NotNull
+    private final String path;
+    private final long lingerNanos;
+    @NotNull
+    private final FailureHandler onFailure;
+    @NotNull
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    @NotNull
+    private final ExecutorService senders;
+    @NotNull
+    private final LongAdder batches;
+    @NotNull
+    private final LongAdder writes;
+    @NotNull
+    private final Histogram latency;
+    @NotNull
+    private final MemoryBudget.Component memory;
+
+    ReplicationQueue(@NotNull String node,
+                     @NotNull String path,
+                     long lingerMicros,
+                     int senders,
+                     @NotNull FailureHandler onFailure,
+                     @NotNull LongAdder batches,
+                     @NotNull LongAdder writes,
+                     @NotNull Histogram latency,
+                     @NotNull MemoryBudget.Component memory) {
+        this.node = node;
+        this.path = path;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.onFailure = onFailure;
+        this.batches = batches;
+        this.writes = writes;
+        this.latency = latency;
+        this.memory = memory;
+        this.senders = Executors.newFixedThreadPool(senders);
+        for (int i = 0; i < senders; i++) {
+            this.senders.execute(this::run);
+        }
+    }
+
+    @NotNull
+    CompletableFuture<Response> write(@NotNull String id, @NotNull byte[] value) {
+        if (!memory.tryReserve(value.length)) {
+            return CompletableFuture.completedFuture(new Response(SERVICE_UNAVAILABLE));
+        }
+        Write write = new Write(id, value);
+        queue.add(write);
+        return write.result;
+    }
+
+    void stop() {
+        senders.shutdownNow();
+        for (Write write; (write = queue.poll()) != null; ) {
+            memory.release(write.value.length);
+            write.result.complete(new Response(SERVER_ERROR));
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Write> pending = collect();
+                Batch batch = new Batch();
+                for (Write write : pending) {
+                    batch.add(write.id, write.value);
+                }
+                Events.InnerCall event = new Events.InnerCall();
+                event.begin();
+                long start = System.nanoTime();
+                Response resp = Http.request(HttpMethod.POST, node + path, batch.toBytes());
+                latency.recordNanos(System.nanoTime() - start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.node = node;
+                    event.method = HttpMethod.POST.name();
+                    event.path = path;
+                    event.records = pending.size();
+                    event.status = resp.getCode();
+                    event.commit();
+                }
+                batches.increment();
+                writes.add(pending.size());
+                if (!resp.isSuccessful()) {
+                    onFailure.failed(batch, resp);
+                }
+                for (Write write : pending) {
+                    memory.release(write.value.length);
+                    write.result.complete(resp);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @NotNull
+    private List<Write> collect() throws InterruptedException {
+        List<Write> pending = new ArrayList<>();
+        Write first = queue.take();
+        pending.add(first);
+        int bytes = first.value.length;
+        long deadline = System.nanoTime() + lingerNanos;
+        while (pending.size() < MAX_BATCH_WRITES && bytes < MAX_BATCH_BYTES) {
+            Write next = queue.poll();
+            if (next == null) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                    break;
+                }
+            }
+            pending.add(next);
+            bytes += next.value.length;
+        }
+        return pending;
+    }
+
+    @FunctionalInterface
+    interface FailureHandler {
+        void failed(@NotNull Batch batch, @NotNull Response response);
+    }
+
+    private static final class Write {
+
+        private final String id;
+        private final byte[] value;
+        private final CompletableFuture<Response> result = new CompletableFuture<>();
+
+        private Write(String id, byte[] value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+}
@@ -5,14 +5,20 @@ class Response {
     static final int OK = 200;
     static final int CREATED = 201;
     static final int ACCEPTED = 202;
+    static final int NOT_MODIFIED = 304;
     static final int BAD_REQUEST = 400;
     static final int NOT_FOUND = 404;
     static final int NOT_ALLOWED = 405;
+    static final int CONFLICT = 409;
+    static final int PRECONDITION_FAILED = 412;
     static final int SERVER_ERROR = 500;
+    static final int SERVICE_UNAVAILABLE = 503;
     static final int NOT_ENOUGH_REPLICAS = 504;
 
     private final int code;
     private final byte[] data;
+    private String etag;
+    private boolean unreachable;
 
     Response(int code) {
         this.code = code;
@@ -29,10 +35,30 @@ class Response {
         this.data = data;
     }
 
+    /**
+     * {@code 500} of a request which couldn't reach the node or timed out.
+     */
+    static Response unreachable() {
+        Response response = new Response(SERVER_ERROR);
+        response.unreachable = true;
+        return response;
+    }
+
+    /**
+     * @return {@code true} if the node didn't answer, as opposed to answering with an error
+     */
+    boolean isUnreachable() {
+        return unreachable;
+    }
+
     int getCode() {
         return code;
     }
 
+    boolean isSuccessful() {
+        return code >= 200 && code < 300;
+    }
+
     boolean hasData() {
         return data != null;
     }
@@ -40,4 +66,13 @@ class Response {
     byte[] getData() {
         return data;
     }
+
+    Response withETag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    String getETag() {
+        return etag;
+    }
 }
@@ -0,0 +1,27 @@
+package ru.mail.polis.vaddya;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Restores a node data directory from a backup made by {@code POST /v0/admin/backup}.
+ * The node must be stopped and the value directories of the backup must have no values in its data directory.
+ * <p>
+ * Usage: {@code Restore <backups dir> <snapshot name> <data dir>}
+ */
+public final class Restore {
+
+    private Restore() {
+        // Not instantiable
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: Restore <backups dir> <snapshot name> <data dir>");
+            System.exit(1);
+        }
+        final File data = new File(args[2]);
+        final long restored = Snapshots.restore(new File(args[0]), args[1], data);
+        System.out.println(restored + " values restored into " + data);
+    }
+}
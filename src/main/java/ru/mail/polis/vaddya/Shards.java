@@ -0,0 +1,240 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Shared-nothing split of the local keyspace: every shard owns a DAO in its own directory
+ * and a thread that alone runs the storage work routed to the shard by key hash.
+ * <p>
+ * Tasks reach a shard through a lock-free queue, the thread parks when the queue is empty.
+ * The number of shards is kept on disk, keys would be looked up in the wrong shard if it changed.
+ * Values stored before sharding was turned on are moved into their shards by {@link #adopt}.
+ * As a {@link DAO} the shards can be used from any thread, e.g. by background tasks.
+ */
+final class Shards implements DAO {
+
+    static final String DIR = "shards";
+
+    private static final Logger log = Logger.getLogger(Shards.class.getName());
+    private static final String COUNT = "COUNT";
+
+    @NotNull
+    private final Shard[] shards;
+
+    Shards(@NotNull File dir,
+           int count,
+           int capacity,
+           @NotNull Metrics metrics) throws IOException {
+        Path countFile = Files.createDirectories(dir.toPath()).resolve(COUNT);
+        if (Files.exists(countFile)) {
+            int stored = Integer.parseInt(new String(Files.readAllBytes(countFile), StandardCharsets.UTF_8).trim());
+            if (stored != count) {
+                throw new IOException("Data is split into " + stored + " shards, not " + count);
+            }
+        } else {
+            Files.write(countFile, String.valueOf(count).getBytes(StandardCharsets.UTF_8));
+        }
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            Path shard = Files.createDirectories(dir.toPath().resolve(String.valueOf(i)));
+            shards[i] = new Shard(i, shard, new DAOImpl(shard.toString()), capacity, metrics);
+        }
+    }
+
+    /**
+     * @return {@code true} if the directory holds sharded values
+     */
+    static boolean exists(@NotNull File dir) {
+        return new File(dir, COUNT).isFile();
+    }
+
+    /**
+     * @return the directories of the shards relative to the parent of the shards directory
+     */
+    @NotNull
+    List<String> directories() {
+        List<String> dirs = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            dirs.add(DIR + "/" + i);
+        }
+        return dirs;
+    }
+
+    /**
+     * Moves the values of an unsharded {@link DAOImpl} directory into their shards.
+     * Must be called before {@link #start}.
+     *
+     * @return the number of values moved
+     * @throws java.nio.file.FileAlreadyExistsException if a shard has a value of the same key
+     */
+    long adopt(@NotNull File from) throws IOException {
+        long moved = 0;
+        try (Stream<Path> files = Files.list(from.toPath())) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                String id = file.getFileName().toString();
+                Files.move(file, shardOf(id).dir.resolve(id));
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    void start() {
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    void stop() {
+        for (Shard shard : shards) {
+            shard.stopped = true;
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    /**
+     * @return the executor of the shard owning the ID
+     */
+    @NotNull
+    Executor executor(@NotNull String id) {
+        return shardOf(id);
+    }
+
+    @NotNull
+    @Override
+    public byte[] get(@NotNull String id) throws NoSuchElementException, IllegalArgumentException, IOException {
+        return shardOf(id).dao.get(id);
+    }
+
+    @Override
+    public void upsert(@NotNull String id, @NotNull byte[] value) throws IllegalArgumentException, IOException {
+        shardOf(id).dao.upsert(id, value);
+    }
+
+    @Override
+    public void delete(@NotNull String id) throws IllegalArgumentException, IOException {
+        shardOf(id).dao.delete(id);
+    }
+
+    @NotNull
+    @Override
+    public Stream<String> keys() throws IOException {
+        Stream<String> keys = Stream.empty();
+        try {
+            for (Shard shard : shards) {
+                keys = Stream.concat(keys, shard.dao.keys());
+            }
+            return keys;
+        } catch (IOException e) {
+            keys.close();
+            throw e;
+        }
+    }
+
+    @NotNull
+    private Shard shardOf(@NotNull String id) {
+        return shards[(int) Long.remainderUnsigned(Hash.hash64(id), shards.length)];
+    }
+
+    private static final class Shard implements Executor {
+
+        @NotNull
+        private final Path dir;
+        @NotNull
+        private final DAO dao;
+        private final int capacity;
+        @NotNull
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        @NotNull
+        private final AtomicInteger size = new AtomicInteger();
+        @NotNull
+        private final Thread thread;
+        @NotNull
+        private final Histogram waitTime;
+        @NotNull
+        private final Histogram serviceTime;
+        @NotNull
+        private final LongAdder rejected;
+        private volatile boolean stopped;
+
+        private Shard(int index,
+                      @NotNull Path dir,
+                      @NotNull DAO dao,
+                      int capacity,
+                      @NotNull Metrics metrics) {
+            this.dir = dir;
+            this.dao = dao;
+            this.capacity = capacity;
+            this.thread = new Thread(this::run, "kv-shard-" + index);
+            String label = "{shard=\"" + index + "\"}";
+            this.waitTime = metrics.histogram("kv_shard_wait_seconds" + label, "Time tasks wait in the shard queue");
+            this.serviceTime = metrics.histogram("kv_shard_service_seconds" + label, "Time tasks run in the shard");
+            this.rejected = metrics.counter("kv_shard_rejected_total" + label,
+                    "Tasks rejected by the full shard queue");
+            metrics.gauge("kv_shard_queue_depth" + label, "Tasks waiting in the shard queue", size::get);
+        }
+
+        /**
+         * @throws RejectedExecutionException if the queue is full or the shard is stopped
+         */
+        @Override
+        public void execute(@NotNull Runnable task) {
+            if (stopped) {
+                throw new RejectedExecutionException("Shard " + thread.getName() + " is stopped");
+            }
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                rejected.increment();
+                throw new RejectedExecutionException("Shard " + thread.getName() + " is overloaded");
+            }
+            long enqueued = System.nanoTime();
+            queue.add(() -> {
+                long start = System.nanoTime();
+                waitTime.recordNanos(start - enqueued);
+                try {
+                    task.run();
+                } finally {
+                    serviceTime.recordNanos(System.nanoTime() - start);
+                }
+            });
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Runs the tasks queued before the shard is stopped, so nobody waits for them forever.
+         */
+        private void run() {
+            while (!stopped || !queue.isEmpty()) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                size.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Task of " + thread.getName() + " failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Snapshots of the value directories of a node made of hard links, which is instant and takes no space,
+ * because {@link DAOImpl} never modifies a value file in place.
+ * <p>
+ * Each directory, given relative to the data directory, e.g. {@code entities}, is mirrored by
+ * a directory of the same relative path in the snapshot and in its backups, so the files of values
+ * never share a directory with the manifest.
+ * <p>
+ * A snapshot is fuzzy: every key is taken at some moment while the snapshot is being made.
+ * It can be backed up to another directory, fully or incrementally against the backup of
+ * an earlier snapshot, in which case only files created since that snapshot are copied.
+ * Every backup has a manifest telling for each key which backup holds its file,
+ * so {@link #restore} needs the chain of backups but nothing else.
+ */
+class Snapshots {
+
+    static final String DIR = "snapshots";
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_\\-][A-Za-z0-9_.\\-]*");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @NotNull
+    private final Path data;
+    @NotNull
+    private final List<String> sources;
+    @NotNull
+    private final Path dir;
+    @NotNull
+    private final RateLimiter limiter;
+
+    /**
+     * @param sources the value directories relative to {@code data}
+     */
+    Snapshots(@NotNull File data,
+              @NotNull List<String> sources,
+              @NotNull File dir,
+              @NotNull RateLimiter limiter) {
+        this.data = data.toPath();
+        this.sources = new ArrayList<>(sources);
+        this.dir = dir.toPath();
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return the number of files in the snapshot
+     */
+    synchronized long create(@NotNull String name) throws IOException {
+        Path snapshot = dir.resolve(checkName(name));
+        Path tmp = dir.resolve(name + TMP_SUFFIX);
+        deleteRecursively(tmp);
+        Files.createDirectory(tmp);
+
+        long files = 0;
+        for (String source : sources) {
+            Path from = data.resolve(source);
+            Path to = Files.createDirectories(tmp.resolve(source));
+            if (!Files.isDirectory(from)) {
+                continue;
+            }
+            try (Stream<Path> paths = Files.list(from)) {
+                for (Path file : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                    try {
+                        Files.createLink(to.resolve(file.getFileName()), file);
+                        files++;
+                    } catch (NoSuchFileException e) {
+                        // deleted meanwhile
+                    }
+                }
+            }
+        }
+        if (Files.exists(snapshot)) {
+            deleteRecursively(tmp);
+            throw new FileAlreadyExistsException(snapshot.toString());
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        return files;
+    }
+
+    @NotNull
+    List<String> list() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            paths.map(path -> path.getFileName().toString())
+                    .filter(name -> !name.endsWith(TMP_SUFFIX))
+                    .forEach(names::add);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    synchronized void delete(@NotNull String name) throws IOException {
+        Path snapshot = dir.resolve(checkName(name));
+        if (!Files.isDirectory(snapshot)) {
+            throw new NoSuchFileException(snapshot.toString());
+        }
+        deleteRecursively(snapshot);
+    }
+
+    /**
+     * Copies the snapshot to {@code <to>/<name>}. If {@code base} is given, its backup must be
+     * in {@code to} already, and only the files which are not in the {@code base} snapshot are copied.
+     *
+     * @return the number of files copied
+     */
+    long backup(@NotNull String name,
+                @NotNull File to,
+                @Nullable String base) throws IOException, InterruptedException {
+        Path snapshot = dir.resolve(checkName(name));
+        Path target = to.toPath().resolve(name);
+        if (!Files.isDirectory(snapshot)) {
+            throw new NoSuchFileException(snapshot.toString());
+        }
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Path baseSnapshot = base == null ? null : dir.resolve(checkName(base));
+        if (baseSnapshot != null && !Files.isDirectory(baseSnapshot)) {
+            throw new NoSuchFileException(baseSnapshot.toString());
+        }
+        Map<String, String> baseSources = base == null
+                ? Collections.emptyMap()
+                : readManifest(to.toPath().resolve(base));
+
+        Path tmp = to.toPath().resolve(name + TMP_SUFFIX);
+        deleteRecursively(tmp);
+        Files.createDirectories(tmp);
+        long copied = 0;
+        try (BufferedWriter manifest = Files.newBufferedWriter(tmp.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+            for (String source : sources) {
+                Path from = snapshot.resolve(source);
+                if (!Files.isDirectory(from)) {
+                    continue;
+                }
+                Path copies = Files.createDirectories(tmp.resolve(source));
+                try (Stream<Path> paths = Files.list(from)) {
+                    for (Path file : (Iterable<Path>) paths::iterator) {
+                        String path = source + "/" + file.getFileName();
+                        String backup = baseSources.get(path);
+                        if (backup == null || !sameFile(file, baseSnapshot.resolve(path))) {
+                            copy(file, copies.resolve(file.getFileName()));
+                            backup = name;
+                            copied++;
+                        }
+                        manifest.write(backup + "\t" + path + "\n");
+                    }
+                }
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        return copied;
+    }
+
+    /**
+     * Restores the backup {@code name} from {@code backups} into the data directory,
+     * every value directory of the backup must be empty or absent there.
+     *
+     * @return the number of files restored
+     */
+    static long restore(@NotNull File backups,
+                        @NotNull String name,
+                        @NotNull File data) throws IOException {
+        Path root = backups.toPath();
+        Map<String, String> manifest = readManifest(root.resolve(checkName(name)));
+        Set<Path> targets = new HashSet<>();
+        for (String path : manifest.keySet()) {
+            targets.add(data.toPath().resolve(path).getParent());
+        }
+        for (Path target : targets) {
+            Files.createDirectories(target);
+            try (Stream<Path> existing = Files.list(target)) {
+                if (existing.anyMatch(Files::isRegularFile)) {
+                    throw new FileAlreadyExistsException(target + " is not empty");
+                }
+            }
+        }
+
+        long restored = 0;
+        for (Map.Entry<String, String> entry : manifest.entrySet()) {
+            Path source = root.resolve(checkName(entry.getValue())).resolve(entry.getKey());
+            Files.copy(source, data.toPath().resolve(entry.getKey()));
+            restored++;
+        }
+        return restored;
+    }
+
+    @NotNull
+    private static Map<String, String> readManifest(@NotNull Path backup) throws IOException {
+        Map<String, String> sources = new HashMap<>();
+        for (String line : Files.readAllLines(backup.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0 || line.indexOf('/', tab) < 0) {
+                throw new IOException("Malformed manifest of " + backup);
+            }
+            sources.put(line.substring(tab + 1), line.substring(0, tab));
+        }
+        return sources;
+    }
+
+    private void copy(@NotNull Path from, @NotNull Path to) throws IOException, InterruptedException {
+        try (InputStream is = Files.newInputStream(from);
+             OutputStream os = Files.newOutputStream(to)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int len; (len = is.read(buffer)) != -1; ) {
+                limiter.acquire(len);
+                os.write(buffer, 0, len);
+            }
+        }
+    }
+
+    private static boolean sameFile(@NotNull Path a, @NotNull Path b) throws IOException {
+        try {
+            return Files.isSameFile(a, b);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    @NotNull
+    private static String checkName(@NotNull String name) {
+        if (!NAME.matcher(name).matches() || name.endsWith(TMP_SUFFIX)) {
+            throw new IllegalArgumentException("Snapshot name is invalid");
+        }
+        return name;
+    }
+
+    private static void deleteRecursively(@NotNull Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> children = Files.list(path)) {
+                for (Path child : (Iterable<Path>) children::iterator) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+}
@@ -0,0 +1,198 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stage of the request pipeline: its own threads and queue, so a stage that stalls, e.g. on a slow disk,
+ * holds up only the work queued for it and each stage is sized separately.
+ * <p>
+ * A bounded stage rejects work when its queue is full, the request is then answered with {@code 503}.
+ * Queue depth, time in the queue and service time are exported per stage.
+ */
+final class Stage implements Executor {
+
+    @NotNull
+    private final String name;
+    @NotNull
+    private final ThreadPoolExecutor pool;
+    @NotNull
+    private final AtomicLong sequence = new AtomicLong();
+    @NotNull
+    private final Histogram waitTime;
+    @NotNull
+    private final Histogram serviceTime;
+    @NotNull
+    private final LongAdder rejected;
+
+    private Stage(@NotNull String name,
+                  int threads,
+                  @NotNull BlockingQueue<Runnable> queue,
+                  @NotNull Metrics metrics) {
+        this.name = name;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, threadFactory(name));
+        String label = "{stage=\"" + name + "\"}";
+        this.waitTime = metrics.histogram("kv_stage_wait_seconds" + label, "Time tasks wait in the stage queue");
+        this.serviceTime = metrics.histogram("kv_stage_service_seconds" + label, "Time tasks run in the stage");
+        this.rejected = metrics.counter("kv_stage_rejected_total" + label, "Tasks rejected by the full stage queue");
+        metrics.gauge("kv_stage_queue_depth" + label, "Tasks waiting in the stage queue", queue::size);
+        metrics.gauge("kv_stage_active_threads" + label, "Threads of the stage running tasks", pool::getActiveCount);
+        metrics.gauge("kv_stage_threads" + label, "Threads of the stage", () -> threads);
+    }
+
+    /**
+     * Rejects tasks beyond {@code capacity} waiting ones.
+     */
+    @NotNull
+    static Stage bounded(@NotNull String name, int threads, int capacity, @NotNull Metrics metrics) {
+        return new Stage(name, threads, new ArrayBlockingQueue<>(capacity), metrics);
+    }
+
+    @NotNull
+    static Stage unbounded(@NotNull String name, int threads, @NotNull Metrics metrics) {
+        return new Stage(name, threads, new LinkedBlockingQueue<>(), metrics);
+    }
+
+    /**
+     * Runs tasks of a lower {@code priority} first, tasks of a priority in order of arrival.
+     */
+    @NotNull
+    static Stage prioritized(@NotNull String name, int threads, @NotNull Metrics metrics) {
+        return new Stage(name, threads, new PriorityBlockingQueue<>(), metrics);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the stage is stopped
+     */
+    @Override
+    public void execute(@NotNull Runnable task) {
+        execute(0, task);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the stage is stopped
+     */
+    void execute(int priority, @NotNull Runnable task) {
+        try {
+            pool.execute(new Job(priority, sequence.getAndIncrement(), task));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new RejectedExecutionException("Stage " + name + " is overloaded");
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the stage is stopped
+     */
+    @NotNull
+    <T> CompletableFuture<T> supply(@NotNull Callable<T> task) {
+        return supply(this, task);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the stage is stopped
+     */
+    <T> T call(@NotNull Callable<T> task) throws IOException {
+        return join(supply(task));
+    }
+
+    /**
+     * Runs the task on the executor with the timings of the current request.
+     */
+    @NotNull
+    static <T> CompletableFuture<T> supply(@NotNull Executor executor, @NotNull Callable<T> task) {
+        return CompletableFuture.supplyAsync(Timings.propagate(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }), executor);
+    }
+
+    /**
+     * Runs the task on the executor and waits for it, rethrowing its exception.
+     */
+    static <T> T call(@NotNull Executor executor, @NotNull Callable<T> task) throws IOException {
+        return join(supply(executor, task));
+    }
+
+    /**
+     * Waits for the task, rethrowing its exception.
+     */
+    static <T> T join(@NotNull CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops taking tasks. The queued ones still run, so nobody waits for them forever.
+     */
+    void stop() {
+        pool.shutdown();
+    }
+
+    @NotNull
+    private static ThreadFactory threadFactory(@NotNull String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, "kv-" + name + "-" + count.incrementAndGet());
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+
+        private final int priority;
+        private final long sequence;
+        @NotNull
+        private final Runnable task;
+        private final long enqueued = System.nanoTime();
+
+        private Job(int priority,
+                    long sequence,
+                    @NotNull Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            waitTime.recordNanos(start - enqueued);
+            try {
+                task.run();
+            } finally {
+                serviceTime.recordNanos(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public int compareTo(@NotNull Job other) {
+            int cmp = Integer.compare(priority, other.priority);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+}
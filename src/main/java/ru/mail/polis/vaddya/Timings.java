@@ -0,0 +1,98 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Durations of the stages of one request, rendered as a {@code Server-Timing} header.
+ * <p>
+ * The timings of a request are bound to the thread handling it, so any code on the request path
+ * can add a stage through {@link #current()}; tasks run on other threads for the request
+ * are wrapped with {@link #propagate}. Stages added more than once are summed.
+ * <p>
+ * The header is rendered right before the response is written, so writing it is not a stage:
+ * see {@code kv_response_write_seconds} and the {@link Events.ResponseWrite} event instead.
+ */
+final class Timings {
+
+    private static final ThreadLocal<Timings> CURRENT = new ThreadLocal<>();
+    private static final Timings DISCARD = new Timings(0);
+
+    private final long start;
+    private final Map<String, Long> stages = new LinkedHashMap<>();
+
+    private Timings(long start) {
+        this.start = start;
+    }
+
+    /**
+     * Binds new timings of a request started at {@code start} to the current thread.
+     */
+    @NotNull
+    static Timings begin(long start) {
+        Timings timings = new Timings(start);
+        CURRENT.set(timings);
+        return timings;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return the timings of the request handled by this thread, or ones which discard everything
+     */
+    @NotNull
+    static Timings current() {
+        Timings timings = CURRENT.get();
+        return timings == null ? DISCARD : timings;
+    }
+
+    @NotNull
+    static <T> Supplier<T> propagate(@NotNull Supplier<T> task) {
+        Timings timings = CURRENT.get();
+        if (timings == null) {
+            return task;
+        }
+        return () -> {
+            Timings previous = CURRENT.get();
+            CURRENT.set(timings);
+            try {
+                return task.get();
+            } finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    void add(@NotNull String stage, long nanos) {
+        if (this == DISCARD) {
+            return;
+        }
+        synchronized (stages) {
+            stages.merge(stage, nanos, Long::sum);
+        }
+    }
+
+    /**
+     * @return the stages and the total time so far, in milliseconds
+     */
+    @NotNull
+    String toHeader() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (stages) {
+            for (Map.Entry<String, Long> stage : stages.entrySet()) {
+                append(sb, stage.getKey(), stage.getValue()).append(", ");
+            }
+        }
+        return append(sb, "total", System.nanoTime() - start).toString();
+    }
+
+    private static StringBuilder append(@NotNull StringBuilder sb, @NotNull String stage, long nanos) {
+        return sb.append(stage).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+    }
+}
@@ -0,0 +1,164 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Versioned value as it is stored on a replica.
+ * <p>
+ * Deletes are kept as tombstones, so that a replica which missed the delete
+ * can be told apart from one which never had the key.
+ * <p>
+ * The encoding starts with a format byte. It is a byte which never occurs in UTF-8, so a stored
+ * value can be told apart from a raw one written before values were versioned (see {@link #fromStored}).
+ */
+final class Value {
+
+    private static final byte FORMAT = (byte) 0xFE;
+    private static final int HEADER_SIZE = Byte.BYTES + Long.BYTES + Byte.BYTES + Integer.BYTES;
+    private static final byte FLAG_TOMBSTONE = 1;
+    private static final byte FLAG_DIGEST = 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final long timestamp;
+    private final boolean tombstone;
+    private final boolean digest;
+    private final int replicas;
+    @NotNull
+    private final byte[] data;
+    private long contentHash;
+
+    private Value(long timestamp, boolean tombstone, boolean digest, int replicas, @NotNull byte[] data) {
+        this.timestamp = timestamp;
+        this.tombstone = tombstone;
+        this.digest = digest;
+        this.replicas = replicas;
+        this.data = data;
+    }
+
+    static Value present(long timestamp, int replicas, @NotNull byte[] data) {
+        return new Value(timestamp, false, false, replicas, data);
+    }
+
+    static Value tombstone(long timestamp, int replicas) {
+        return new Value(timestamp, true, false, replicas, EMPTY);
+    }
+
+    @NotNull
+    static Value fromBytes(@NotNull byte[] bytes) {
+        if (!isVersioned(bytes)) {
+            throw new IllegalArgumentException("Value is corrupted");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, Byte.BYTES, bytes.length - Byte.BYTES);
+        long timestamp = buffer.getLong();
+        byte flags = buffer.get();
+        int replicas = buffer.getInt();
+        byte[] data = Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+        boolean digest = (flags & FLAG_DIGEST) != 0;
+        if (digest && data.length != Long.BYTES) {
+            throw new IllegalArgumentException("Digest is corrupted");
+        }
+        return new Value(timestamp, (flags & FLAG_TOMBSTONE) != 0, digest, replicas, data);
+    }
+
+    /**
+     * Parses a value read from the local storage. A raw value stored before values were versioned
+     * is taken for a value of timestamp {@code 0} written to an unknown number of replicas,
+     * so any later write wins over it.
+     */
+    @NotNull
+    static Value fromStored(@NotNull byte[] bytes) {
+        return isVersioned(bytes) ? fromBytes(bytes) : present(0, 0, bytes);
+    }
+
+    private static boolean isVersioned(@NotNull byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == FORMAT;
+    }
+
+    /**
+     * The same version with the payload replaced by its hash.
+     */
+    @NotNull
+    Value toDigest() {
+        if (digest) {
+            return this;
+        }
+        byte[] hash = ByteBuffer.allocate(Long.BYTES).putLong(contentHash()).array();
+        return new Value(timestamp, tombstone, true, replicas, hash);
+    }
+
+    @NotNull
+    byte[] toBytes() {
+        return ByteBuffer.allocate(HEADER_SIZE + data.length)
+                .put(FORMAT)
+                .putLong(timestamp)
+                .put((byte) ((tombstone ? FLAG_TOMBSTONE : 0) | (digest ? FLAG_DIGEST : 0)))
+                .putInt(replicas)
+                .put(data)
+                .array();
+    }
+
+    /**
+     * Last write wins; on equal timestamps tombstones win, then the bigger content hash,
+     * so that all replicas settle on the same value. Digests compare as their full values.
+     */
+    boolean isNewerThan(@NotNull Value other) {
+        if (timestamp != other.timestamp) {
+            return timestamp > other.timestamp;
+        }
+        if (tombstone != other.tombstone) {
+            return tombstone;
+        }
+        return Long.compareUnsigned(contentHash(), other.contentHash()) > 0;
+    }
+
+    boolean isSameVersion(@NotNull Value other) {
+        return timestamp == other.timestamp
+                && tombstone == other.tombstone
+                && contentHash() == other.contentHash();
+    }
+
+    long contentHash() {
+        if (digest) {
+            return ByteBuffer.wrap(data).getLong();
+        }
+        if (contentHash == 0) {
+            contentHash = Hash.hash64(data);
+        }
+        return contentHash;
+    }
+
+    /**
+     * Strong entity tag of the version, the same for the full value and its digest.
+     */
+    @NotNull
+    String etag() {
+        return "\"" + Long.toHexString(timestamp) + "-" + Long.toHexString(contentHash()) + "\"";
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    boolean isTombstone() {
+        return tombstone;
+    }
+
+    boolean isDigest() {
+        return digest;
+    }
+
+    int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * For a digest this is the hash of the payload, not the payload.
+     */
+    @NotNull
+    byte[] getData() {
+        return data;
+    }
+}
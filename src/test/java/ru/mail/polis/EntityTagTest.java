@@ -0,0 +1,148 @@
+package ru.mail.polis;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Request;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Unit tests for {@code ETag}s and conditional requests in a two node {@link KVService} cluster
+ */
+public class EntityTagTest extends ClusterTestBase {
+    // below the compression threshold, so the tags are not weakened
+    private static final byte[] VALUE = "value".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OTHER = "other".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(3);
+    private File data0;
+    private File data1;
+    private KVService storage0;
+    private KVService storage1;
+
+    @Before
+    public void beforeEach() throws IOException, InterruptedException {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        storage0 = KVServiceFactory.create(port0, data0, endpoints);
+        storage0.start();
+        storage1 = KVServiceFactory.create(port1, data1, endpoints);
+        storage1.start();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        storage0.stop();
+        Files.recursiveDelete(data0);
+        storage1.stop();
+        Files.recursiveDelete(data1);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    public void sameTagOnAnyNode() throws Exception {
+        final String key = randomKey();
+        final HttpResponse put = upsert(0, key, VALUE, 2, 2);
+        assertEquals(201, put.getStatusLine().getStatusCode());
+        final String etag = etagOf(put);
+
+        assertEquals(etag, etagOf(get(0, key, 2, 2)));
+        assertEquals(etag, etagOf(get(1, key, 1, 2)));
+    }
+
+    @Test
+    public void newValueNewTag() throws Exception {
+        final String key = randomKey();
+        final String etag = etagOf(upsert(0, key, VALUE, 2, 2));
+        assertNotEquals(etag, etagOf(upsert(1, key, VALUE, 2, 2)));
+    }
+
+    @Test
+    public void notModified() throws Exception {
+        final String key = randomKey();
+        final String etag = etagOf(upsert(0, key, VALUE, 2, 2));
+
+        final HttpResponse response = Request.Get(url(1, key, 2, 2))
+                .addHeader("If-None-Match", etag).execute().returnResponse();
+        assertEquals(304, response.getStatusLine().getStatusCode());
+        assertEquals(etag, etagOf(response));
+
+        final HttpResponse changed = Request.Get(url(1, key, 2, 2))
+                .addHeader("If-None-Match", "\"stale\"").execute().returnResponse();
+        assertEquals(200, changed.getStatusLine().getStatusCode());
+        assertArrayEquals(VALUE, payloadOf(changed));
+    }
+
+    @Test
+    public void putIfMatch() throws Exception {
+        final String key = randomKey();
+        final String etag = etagOf(upsert(0, key, VALUE, 2, 2));
+
+        final HttpResponse response = Request.Put(url(1, key, 2, 2))
+                .addHeader("If-Match", etag).bodyByteArray(OTHER).execute().returnResponse();
+        assertEquals(201, response.getStatusLine().getStatusCode());
+        assertArrayEquals(OTHER, payloadOf(get(0, key, 2, 2)));
+    }
+
+    @Test
+    public void putIfMatchStale() throws Exception {
+        final String key = randomKey();
+        final String etag = etagOf(upsert(0, key, VALUE, 2, 2));
+        assertEquals(201, upsert(0, key, OTHER, 2, 2).getStatusLine().getStatusCode());
+
+        final HttpResponse response = Request.Put(url(1, key, 2, 2))
+                .addHeader("If-Match", etag).bodyByteArray(VALUE).execute().returnResponse();
+        assertEquals(412, response.getStatusLine().getStatusCode());
+        assertArrayEquals(OTHER, payloadOf(get(1, key, 2, 2)));
+    }
+
+    @Test
+    public void putIfMatchMissing() throws Exception {
+        final HttpResponse response = Request.Put(url(0, randomKey(), 2, 2))
+                .addHeader("If-Match", "*").bodyByteArray(VALUE).execute().returnResponse();
+        assertEquals(412, response.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void deleteIfMatch() throws Exception {
+        final String key = randomKey();
+        final String etag = etagOf(upsert(0, key, VALUE, 2, 2));
+        assertEquals(201, upsert(0, key, OTHER, 2, 2).getStatusLine().getStatusCode());
+
+        assertEquals(412, Request.Delete(url(1, key, 2, 2))
+                .addHeader("If-Match", etag).execute().returnResponse().getStatusLine().getStatusCode());
+        assertEquals(200, get(0, key, 2, 2).getStatusLine().getStatusCode());
+
+        final String current = etagOf(get(0, key, 2, 2));
+        assertEquals(202, Request.Delete(url(1, key, 2, 2))
+                .addHeader("If-Match", current).execute().returnResponse().getStatusLine().getStatusCode());
+        assertEquals(404, get(0, key, 2, 2).getStatusLine().getStatusCode());
+    }
+
+    @NotNull
+    private static String etagOf(@NotNull final HttpResponse response) {
+        final Header header = response.getFirstHeader("ETag");
+        assertNotNull("ETag is missing", header);
+        return header.getValue();
+    }
+}
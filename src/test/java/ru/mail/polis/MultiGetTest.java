@@ -0,0 +1,189 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.entity.ContentType;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for multi-get ({@code /v0/entities}) in a three node {@link KVService} cluster
+ */
+public class MultiGetTest extends ClusterTestBase {
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(10);
+    private int port2;
+    private File data0;
+    private File data1;
+    private File data2;
+    private KVService storage0;
+    private KVService storage1;
+    private KVService storage2;
+
+    @Before
+    public void beforeEach() throws IOException, InterruptedException {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        port2 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1), endpoint(port2)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        data2 = Files.createTempDirectory();
+        storage0 = KVServiceFactory.create(port0, data0, endpoints);
+        storage0.start();
+        storage1 = KVServiceFactory.create(port1, data1, endpoints);
+        storage1.start();
+        storage2 = KVServiceFactory.create(port2, data2, endpoints);
+        storage2.start();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        storage0.stop();
+        Files.recursiveDelete(data0);
+        storage1.stop();
+        Files.recursiveDelete(data1);
+        storage2.stop();
+        Files.recursiveDelete(data2);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    public void getMany() throws Exception {
+        final String key0 = randomKey();
+        final String key1 = randomKey();
+        final String missing = randomKey();
+        final byte[] value0 = randomValue();
+        final byte[] value1 = randomValue();
+        assertEquals(201, upsert(0, key0, value0, 2, 3).getStatusLine().getStatusCode());
+        assertEquals(201, upsert(1, key1, value1, 2, 3).getStatusLine().getStatusCode());
+
+        final HttpResponse response = Request.Get(
+                entities(2) + "?id=" + key1 + "&id=" + missing + "&id=" + key0 + "&replicas=2/3")
+                .execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+
+        final Map<String, byte[]> records = records(payloadOf(response));
+        assertEquals(Arrays.asList(key1, missing, key0), new ArrayList<>(records.keySet()));
+        assertRecord(200, value1, records.get(key1));
+        assertRecord(404, new byte[0], records.get(missing));
+        assertRecord(200, value0, records.get(key0));
+    }
+
+    @Test
+    public void postMany() throws Exception {
+        final String key0 = randomKey();
+        final String key1 = randomKey();
+        final byte[] value = randomValue();
+        assertEquals(201, upsert(0, key0, value, 3, 3).getStatusLine().getStatusCode());
+        assertEquals(201, upsert(0, key1, value, 3, 3).getStatusLine().getStatusCode());
+        assertEquals(202, delete(0, key1, 3, 3).getStatusLine().getStatusCode());
+
+        final HttpResponse response = Request.Post(entities(1) + "?replicas=3/3")
+                .bodyString(key0 + "\n" + key1 + "\n", ContentType.TEXT_PLAIN)
+                .execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+
+        final Map<String, byte[]> records = records(payloadOf(response));
+        assertRecord(200, value, records.get(key0));
+        assertRecord(404, new byte[0], records.get(key1));
+    }
+
+    @Test
+    public void newestValueWins() throws Exception {
+        final String key = randomKey();
+        final byte[] value = randomValue();
+        final byte[] newer = randomValue();
+        assertEquals(201, upsert(0, key, value, 3, 3).getStatusLine().getStatusCode());
+
+        // Node 2 misses the overwrite
+        storage2.stop();
+        assertEquals(201, upsert(0, key, newer, 2, 3).getStatusLine().getStatusCode());
+        storage2 = KVServiceFactory.create(port2, data2, endpoints);
+        storage2.start();
+
+        final HttpResponse response = Request.Get(entities(2) + "?id=" + key + "&replicas=3/3")
+                .execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertRecord(200, newer, records(payloadOf(response)).get(key));
+    }
+
+    @Test
+    public void notEnoughReplicas() throws Exception {
+        final String key = randomKey();
+        assertEquals(201, upsert(0, key, randomValue(), 3, 3).getStatusLine().getStatusCode());
+        storage1.stop();
+        storage2.stop();
+
+        final HttpResponse response = Request.Get(entities(0) + "?id=" + key + "&replicas=2/3")
+                .execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals(504, codeOf(records(payloadOf(response)).get(key)));
+    }
+
+    @Test
+    public void badRequest() throws Exception {
+        assertEquals(400, Request.Get(entities(0)).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertEquals(400, Request.Get(entities(0) + "?replicas=2/3").execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertEquals(400, Request.Get(entities(0) + "?id=" + randomKey() + "&replicas=4/3").execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertEquals(405, Request.Put(entities(0) + "?id=" + randomKey()).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+    }
+
+    @NotNull
+    private String entities(final int node) {
+        return Iterators.get(endpoints.iterator(), node) + "/v0/entities";
+    }
+
+    /**
+     * Parses {@code [int idLength][id][int recordLength][int status][value]...}
+     */
+    @NotNull
+    private static Map<String, byte[]> records(@NotNull final byte[] body) throws IOException {
+        final Map<String, byte[]> records = new LinkedHashMap<>();
+        final DataInputStream is = new DataInputStream(new ByteArrayInputStream(body));
+        while (is.available() > 0) {
+            final byte[] id = new byte[is.readInt()];
+            is.readFully(id);
+            final byte[] record = new byte[is.readInt()];
+            is.readFully(record);
+            records.put(new String(id, StandardCharsets.UTF_8), record);
+        }
+        return records;
+    }
+
+    private static int codeOf(@NotNull final byte[] record) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(record)).readInt();
+    }
+
+    private static void assertRecord(
+            final int code,
+            @NotNull final byte[] value,
+            @NotNull final byte[] record) throws IOException {
+        assertEquals(code, codeOf(record));
+        assertArrayEquals(value, Arrays.copyOfRange(record, Integer.BYTES, record.length));
+    }
+}
@@ -0,0 +1,153 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Request;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for namespaces ({@code /v0/ns/{name}/entity}) in a two node {@link KVService} cluster.
+ * <p>
+ * The nodes are started with {@code meta} defaulting to {@code 1/2} replicas and {@code blobs}
+ * compressed and cached, the property is restored afterwards for the other tests.
+ */
+public class NamespaceTest extends ClusterTestBase {
+    private static final String PROPERTY = "highload.kv.namespaces";
+    private static final String NAMESPACES = "meta:replicas=1/2;blobs:compress=true,cache=65536";
+
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(3);
+    private File data0;
+    private File data1;
+    private KVService storage0;
+    private KVService storage1;
+    private String previous;
+
+    @Before
+    public void beforeEach() throws IOException, InterruptedException {
+        previous = System.setProperty(PROPERTY, NAMESPACES);
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        storage0 = KVServiceFactory.create(port0, data0, endpoints);
+        storage0.start();
+        storage1 = KVServiceFactory.create(port1, data1, endpoints);
+        storage1.start();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        storage0.stop();
+        Files.recursiveDelete(data0);
+        storage1.stop();
+        Files.recursiveDelete(data1);
+        endpoints = Collections.emptySet();
+        if (previous == null) {
+            System.clearProperty(PROPERTY);
+        } else {
+            System.setProperty(PROPERTY, previous);
+        }
+    }
+
+    @Test
+    public void isolatedKeys() throws Exception {
+        final String key = randomKey();
+        final byte[] plain = randomValue();
+        final byte[] meta = randomValue();
+        assertEquals(201, upsert(0, key, plain, 2, 2).getStatusLine().getStatusCode());
+        assertEquals(201, Request.Put(entity(0, "meta", key) + "&replicas=2/2").bodyByteArray(meta)
+                .execute().returnResponse().getStatusLine().getStatusCode());
+
+        assertArrayEquals(plain, payloadOf(get(1, key, 2, 2)));
+        final HttpResponse response = Request.Get(entity(1, "meta", key) + "&replicas=2/2").execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertArrayEquals(meta, payloadOf(response));
+        assertEquals(404, Request.Get(entity(1, "blobs", key)).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+
+        assertEquals(202, Request.Delete(entity(0, "meta", key) + "&replicas=2/2").execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertEquals(404, Request.Get(entity(1, "meta", key) + "&replicas=2/2").execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertArrayEquals(plain, payloadOf(get(1, key, 2, 2)));
+    }
+
+    @Test
+    public void defaultReplicas() throws Exception {
+        storage1.stop();
+        final String key = randomKey();
+        final byte[] value = randomValue();
+
+        assertEquals(504, Request.Put(entity(0, key)).bodyByteArray(value).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertEquals(201, Request.Put(entity(0, "meta", key)).bodyByteArray(value).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        final HttpResponse response = Request.Get(entity(0, "meta", key)).execute().returnResponse();
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertArrayEquals(value, payloadOf(response));
+    }
+
+    @Test
+    public void compressedAndCached() throws Exception {
+        final String key = randomKey();
+        final byte[] value = new byte[16 * 1024];
+        assertEquals(201, Request.Put(entity(0, "blobs", key)).bodyByteArray(value).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        for (int i = 0; i < 2; i++) {
+            final HttpResponse response = Request.Get(entity(i, "blobs", key)).execute().returnResponse();
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertArrayEquals(value, payloadOf(response));
+        }
+    }
+
+    @Test
+    public void unknownNamespace() throws Exception {
+        assertEquals(404, Request.Get(entity(0, "other", randomKey())).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+        assertEquals(404, Request.Get(node(0) + "/v0/ns/meta/entities?id=" + randomKey()).execute()
+                .returnResponse().getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void qualifiedId() throws Exception {
+        final String key = randomKey();
+        assertEquals(201, Request.Put(entity(0, "meta", key)).bodyByteArray(randomValue()).execute().returnResponse()
+                .getStatusLine().getStatusCode());
+
+        assertEquals(404, get(0, "meta/" + key, 1, 2).getStatusLine().getStatusCode());
+        assertEquals(400, upsert(0, "meta/" + key, randomValue(), 1, 2).getStatusLine().getStatusCode());
+        assertEquals(400, Request.Put(entity(0, "meta", "meta/" + key)).bodyByteArray(randomValue()).execute()
+                .returnResponse().getStatusLine().getStatusCode());
+    }
+
+    @NotNull
+    private String node(final int node) {
+        return Iterators.get(endpoints.iterator(), node);
+    }
+
+    @NotNull
+    private String entity(final int node, @NotNull final String id) {
+        return node(node) + "/v0/entity?id=" + id;
+    }
+
+    @NotNull
+    private String entity(final int node, @NotNull final String namespace, @NotNull final String id) {
+        return node(node) + "/v0/ns/" + namespace + "/entity?id=" + id;
+    }
+}
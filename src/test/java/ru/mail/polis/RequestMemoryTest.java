@@ -0,0 +1,102 @@
+package ru.mail.polis;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for the request memory budget of a two node {@link KVService} cluster
+ */
+public class RequestMemoryTest extends ClusterTestBase {
+    // far over the request memory of a node with the test heap
+    private static final long HUGE = 1_000_000_000L;
+
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(3);
+    private File data0;
+    private File data1;
+    private KVService storage0;
+    private KVService storage1;
+
+    @Before
+    public void beforeEach() throws IOException, InterruptedException {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        storage0 = KVServiceFactory.create(port0, data0, endpoints);
+        storage0.start();
+        storage1 = KVServiceFactory.create(port1, data1, endpoints);
+        storage1.start();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        storage0.stop();
+        Files.recursiveDelete(data0);
+        storage1.stop();
+        Files.recursiveDelete(data1);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    public void hugeBodyIsRejected() throws Exception {
+        final String key = randomKey();
+        assertEquals(503, putDeclaring(0, key, HUGE));
+        assertEquals(404, get(1, key, 2, 2).getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void memoryIsReleased() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(503, putDeclaring(0, randomKey(), HUGE));
+        }
+
+        final String key = randomKey();
+        final byte[] value = randomValue();
+        assertEquals(201, upsert(0, key, value, 2, 2).getStatusLine().getStatusCode());
+        assertArrayEquals(value, payloadOf(get(1, key, 2, 2)));
+    }
+
+    /**
+     * Declares the body length without sending the body
+     *
+     * @return the status code of the response
+     */
+    private int putDeclaring(
+            final int node,
+            @NotNull final String key,
+            final long length) throws IOException {
+        final URI uri = URI.create(url(node, key, 2, 2));
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            final OutputStream os = socket.getOutputStream();
+            os.write(("PUT " + uri.getRawPath() + "?" + uri.getRawQuery() + " HTTP/1.1\r\n"
+                    + "Host: " + uri.getHost() + "\r\n"
+                    + "Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            os.flush();
+            final String status = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            return Integer.parseInt(status.split(" ")[1]);
+        }
+    }
+}
@@ -5,6 +5,9 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -14,9 +17,26 @@ import java.util.concurrent.ThreadLocalRandom;
  */
 abstract class TestBase {
     private static final int VALUE_LENGTH = 1024;
+    // a pooled client connection to a stopped node must not be reused for a new one
+    private static final Set<Integer> USED_PORTS = ConcurrentHashMap.newKeySet();
 
     static int randomPort() {
-        return ThreadLocalRandom.current().nextInt(30000, 40000);
+        while (true) {
+            final int port = ThreadLocalRandom.current().nextInt(30000, 40000);
+            if (USED_PORTS.add(port) && isFree(port)) {
+                return port;
+            }
+        }
+    }
+
+    private static boolean isFree(final int port) {
+        // the range overlaps the ephemeral ports of client connections
+        try {
+            new ServerSocket(port).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
     }
 
     @NotNull
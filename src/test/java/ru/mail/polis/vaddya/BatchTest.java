@@ -0,0 +1,91 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link Batch}
+ */
+public class BatchTest {
+
+    @Test
+    public void roundTrip() {
+        final Batch batch = new Batch();
+        batch.add("a", "value".getBytes(StandardCharsets.UTF_8));
+        batch.add("ключ", new byte[0]);
+        batch.add("c", null);
+
+        final byte[] bytes = batch.toBytes();
+        assertEquals(batch.sizeInBytes(), bytes.length);
+
+        final List<Batch.Record> records = Batch.fromBytes(bytes).getRecords();
+        assertEquals(3, records.size());
+        assertEquals("a", records.get(0).getId());
+        assertArrayEquals("value".getBytes(StandardCharsets.UTF_8), records.get(0).getData());
+        assertEquals("ключ", records.get(1).getId());
+        assertArrayEquals(new byte[0], records.get(1).getData());
+        assertEquals("c", records.get(2).getId());
+        assertNull(records.get(2).getData());
+    }
+
+    @Test
+    public void empty() {
+        final Batch batch = new Batch();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.toBytes().length);
+        assertTrue(Batch.fromBytes(new byte[0]).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated() {
+        final Batch batch = new Batch();
+        batch.add("a", "value".getBytes(StandardCharsets.UTF_8));
+        final byte[] bytes = batch.toBytes();
+        Batch.fromBytes(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lengthOverBody() {
+        final byte[] bytes = ByteBuffer.allocate(2 * Integer.BYTES + 1).putInt(1).put((byte) 'a')
+                .putInt(Integer.MAX_VALUE).array();
+        Batch.fromBytes(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLength() {
+        Batch.fromBytes(ByteBuffer.allocate(Integer.BYTES).putInt(-2).array());
+    }
+
+    @Test
+    public void streamOfBatches() throws IOException {
+        final Batch first = new Batch();
+        first.add("a", new byte[]{1});
+        final Batch second = new Batch();
+        second.add("b", null);
+        final byte[] a = first.toBytes();
+        final byte[] b = second.toBytes();
+        final byte[] stream = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, stream, a.length, b.length);
+
+        final DataInputStream is = new DataInputStream(new ByteArrayInputStream(stream));
+        final Batch.Record one = Batch.read(is);
+        final Batch.Record two = Batch.read(is);
+        assertEquals("a", one.getId());
+        assertArrayEquals(new byte[]{1}, one.getData());
+        assertEquals("b", two.getId());
+        assertNull(two.getData());
+        assertNull(Batch.read(is));
+    }
+}
@@ -0,0 +1,179 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link CachingDAO}
+ */
+public class CachingDAOTest {
+    private static final byte[] VALUE = {1, 2, 3, 4};
+    private static final byte[] OTHER = {5, 6, 7, 8};
+
+    private MapDAO dao;
+    private MemoryBudget.Component memory;
+    private LongAdder hits;
+    private LongAdder misses;
+
+    @Before
+    public void beforeEach() {
+        dao = new MapDAO();
+        memory = new MemoryBudget(1024, new Metrics()).component("cache", 1024);
+        hits = new LongAdder();
+        misses = new LongAdder();
+    }
+
+    @Test
+    public void readThrough() throws IOException {
+        final CachingDAO cache = cache(100);
+        dao.upsert("key", VALUE);
+
+        assertArrayEquals(VALUE, cache.get("key"));
+        assertArrayEquals(VALUE, cache.get("key"));
+        assertEquals(1, dao.reads.sum());
+        assertEquals(1, hits.sum());
+        assertEquals(1, misses.sum());
+        assertEquals(VALUE.length, cache.size());
+    }
+
+    @Test
+    public void writeThrough() throws IOException {
+        final CachingDAO cache = cache(100);
+        cache.upsert("key", VALUE);
+        cache.upsert("key", OTHER);
+
+        assertArrayEquals(OTHER, dao.get("key"));
+        assertArrayEquals(OTHER, cache.get("key"));
+        assertEquals(1, dao.reads.sum());
+        assertEquals(OTHER.length, cache.size());
+    }
+
+    @Test
+    public void deleteEvicts() throws IOException {
+        final CachingDAO cache = cache(100);
+        cache.upsert("key", VALUE);
+        cache.delete("key");
+
+        assertEquals(0, cache.size());
+        try {
+            cache.get("key");
+            fail("The value must be deleted");
+        } catch (NoSuchElementException e) {
+            assertEquals(0, dao.map.size());
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws IOException {
+        final CachingDAO cache = cache(2 * VALUE.length);
+        cache.upsert("a", VALUE);
+        cache.upsert("b", VALUE);
+        cache.get("a");
+        cache.upsert("c", VALUE);
+
+        assertEquals(2 * VALUE.length, cache.size());
+        cache.get("a");
+        cache.get("c");
+        assertEquals(0, dao.reads.sum());
+        cache.get("b");
+        assertEquals(1, dao.reads.sum());
+    }
+
+    @Test
+    public void largeValueIsNotCached() throws IOException {
+        final CachingDAO cache = cache(VALUE.length - 1);
+        cache.upsert("key", VALUE);
+
+        assertEquals(0, cache.size());
+        assertArrayEquals(VALUE, cache.get("key"));
+        assertEquals(1, dao.reads.sum());
+    }
+
+    @Test
+    public void memoryLimitsCache() throws IOException {
+        final Metrics metrics = new Metrics();
+        memory = new MemoryBudget(1024, metrics).component("cache", VALUE.length);
+        final CachingDAO cache = cache(100);
+        cache.upsert("a", VALUE);
+        cache.upsert("b", OTHER);
+
+        assertEquals(OTHER.length, cache.size());
+        assertArrayEquals(VALUE, cache.get("a"));
+        assertEquals(1, dao.reads.sum());
+        final LongAdder rejected = metrics.counter("kv_memory_rejected_total{component=\"cache\"}",
+                "Reservations rejected because the component or the total budget is exhausted");
+        assertEquals("Evictions are not rejections", 0, rejected.sum());
+
+        cache.delete("a");
+        assertTrue("The memory is to be released", memory.tryReserve(VALUE.length));
+    }
+
+    @Test
+    public void failedWriteIsNotCached() throws IOException {
+        final CachingDAO cache = cache(100);
+        cache.upsert("key", VALUE);
+        dao.failing = true;
+        try {
+            cache.upsert("key", OTHER);
+            fail("The write must fail");
+        } catch (IOException e) {
+            assertEquals(0, cache.size());
+        }
+        dao.failing = false;
+        assertArrayEquals(VALUE, cache.get("key"));
+        assertEquals(1, dao.reads.sum());
+    }
+
+    private CachingDAO cache(final long budget) {
+        return new CachingDAO(dao, budget, memory, hits, misses);
+    }
+
+    private static final class MapDAO implements DAO {
+        private final Map<String, byte[]> map = new ConcurrentHashMap<>();
+        private final LongAdder reads = new LongAdder();
+        private volatile boolean failing;
+
+        @NotNull
+        @Override
+        public byte[] get(@NotNull final String id) throws NoSuchElementException {
+            reads.increment();
+            final byte[] value = map.get(id);
+            if (value == null) {
+                throw new NoSuchElementException(id);
+            }
+            return value;
+        }
+
+        @Override
+        public void upsert(@NotNull final String id, @NotNull final byte[] value) throws IOException {
+            if (failing) {
+                throw new IOException("Disk is full");
+            }
+            map.put(id, value);
+        }
+
+        @Override
+        public void delete(@NotNull final String id) {
+            map.remove(id);
+        }
+
+        @NotNull
+        @Override
+        public Stream<String> keys() {
+            return map.keySet().stream();
+        }
+    }
+}
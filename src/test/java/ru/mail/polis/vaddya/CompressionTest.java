@@ -0,0 +1,103 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link Compression}
+ */
+public class CompressionTest {
+    private static final int LARGE = Compression.MIN_BYTES;
+
+    @Test
+    public void smallBodyIsSentAsIs() {
+        assertNull(Compression.negotiate("gzip", Compression.MIN_BYTES - 1));
+    }
+
+    @Test
+    public void noHeader() {
+        assertNull(Compression.negotiate(null, LARGE));
+    }
+
+    @Test
+    public void listedCoding() {
+        assertEquals(Compression.GZIP, Compression.negotiate("gzip", LARGE));
+        assertEquals(Compression.DEFLATE, Compression.negotiate("deflate", LARGE));
+        assertEquals(Compression.GZIP, Compression.negotiate("br, GZIP", LARGE));
+        assertNull(Compression.negotiate("br, identity", LARGE));
+    }
+
+    @Test
+    public void gzipWinsTie() {
+        assertEquals(Compression.GZIP, Compression.negotiate("deflate, gzip", LARGE));
+    }
+
+    @Test
+    public void qualities() {
+        assertEquals(Compression.DEFLATE, Compression.negotiate("gzip;q=0.5, deflate;q=0.8", LARGE));
+        assertEquals(Compression.GZIP, Compression.negotiate("gzip; q=0.9, deflate;q=0.1", LARGE));
+        assertNull(Compression.negotiate("gzip;q=0, deflate;q=0", LARGE));
+        assertEquals(Compression.DEFLATE, Compression.negotiate("gzip;q=oops, deflate", LARGE));
+    }
+
+    @Test
+    public void anyCoding() {
+        assertEquals(Compression.GZIP, Compression.negotiate("*", LARGE));
+        assertEquals(Compression.DEFLATE, Compression.negotiate("gzip;q=0, *", LARGE));
+        assertEquals(Compression.GZIP, Compression.negotiate("*;q=0.5, deflate;q=0.1", LARGE));
+        assertNull(Compression.negotiate("*;q=0", LARGE));
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        roundTrip(Compression.GZIP);
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        roundTrip(Compression.DEFLATE);
+    }
+
+    @Test
+    public void identity() throws IOException {
+        final InputStream is = new ByteArrayInputStream(new byte[]{1});
+        assertSame(is, Compression.decode(is, null));
+        assertSame(is, Compression.decode(is, "Identity"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedCoding() throws IOException {
+        Compression.decode(new ByteArrayInputStream(new byte[0]), "br");
+    }
+
+    private static void roundTrip(final String encoding) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4 * LARGE) {
+            sb.append("value ").append(sb.length() % 10);
+        }
+        final byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        final byte[] encoded = Compression.encode(data, encoding);
+        assertTrue(encoded.length < data.length);
+
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream is = Compression.decode(new ByteArrayInputStream(encoded), encoding.toUpperCase(Locale.ROOT))) {
+            final byte[] buffer = new byte[512];
+            for (int read; (read = is.read(buffer)) > 0; ) {
+                decoded.write(buffer, 0, read);
+            }
+        }
+        assertArrayEquals(data, decoded.toByteArray());
+    }
+}
@@ -0,0 +1,93 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ConcurrencyLimiter}
+ */
+public class ConcurrencyLimiterTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialOverMax() {
+        new ConcurrencyLimiter(10, 1, 8, 2, 0.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroMin() {
+        new ConcurrencyLimiter(1, 0, 8, 2, 0.5);
+    }
+
+    @Test
+    public void admitsUpToLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8, 2, 0.5);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInflight());
+
+        limiter.release(FAST);
+        assertEquals(1, limiter.getInflight());
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void growsWhileLatencyIsSteady() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 2, 0.5);
+        for (int round = 0; round < 100; round++) {
+            saturate(limiter, FAST);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void idleLimitDoesNotGrow() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 2, 0.5);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void cutWhenLatencyRises() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 2, 8, 2, 0.5);
+        saturate(limiter, FAST);
+        saturate(limiter, SLOW);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void notCutBelowMin() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 8, 2, 0.5);
+        saturate(limiter, FAST);
+        saturate(limiter, SLOW);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void notCutUnderLatencyFloor() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 2, 8, 2, 0.5);
+        saturate(limiter, TimeUnit.MICROSECONDS.toNanos(50));
+        saturate(limiter, FAST);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    private static void saturate(final ConcurrencyLimiter limiter, final long latency) {
+        int acquired = 0;
+        while (limiter.tryAcquire()) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limiter.release(latency);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ConsistentHashRing}
+ */
+public class ConsistentHashRingTest {
+    private static final List<String> NODES =
+            Arrays.asList("http://localhost:8080", "http://localhost:8081", "http://localhost:8082");
+    private static final int VNODES = 128;
+    private static final int KEYS = 30_000;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyTopology() {
+        new ConsistentHashRing(Collections.emptyList(), VNODES);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noVirtualNodes() {
+        new ConsistentHashRing(NODES, 0);
+    }
+
+    @Test
+    public void distinctReplicas() {
+        final ConsistentHashRing ring = new ConsistentHashRing(NODES, VNODES);
+        for (int i = 0; i < 1000; i++) {
+            final List<String> replicas = ring.getNodes("key" + i, NODES.size());
+            assertEquals(NODES.size(), replicas.size());
+            assertEquals(NODES.size(), new HashSet<>(replicas).size());
+        }
+    }
+
+    @Test
+    public void countIsCapped() {
+        final ConsistentHashRing ring = new ConsistentHashRing(NODES, VNODES);
+        assertEquals(NODES.size(), ring.getNodes("key", NODES.size() + 2).size());
+    }
+
+    @Test
+    public void smallerSetIsPrefix() {
+        final ConsistentHashRing ring = new ConsistentHashRing(NODES, VNODES);
+        for (int i = 0; i < 1000; i++) {
+            final String id = "key" + i;
+            final List<String> all = ring.getNodes(id, NODES.size());
+            for (int from = 1; from < NODES.size(); from++) {
+                assertEquals(all.subList(0, from), ring.getNodes(id, from));
+            }
+        }
+    }
+
+    @Test
+    public void independentOfOrder() {
+        final List<String> shuffled = new ArrayList<>(NODES);
+        Collections.reverse(shuffled);
+        final ConsistentHashRing ring = new ConsistentHashRing(NODES, VNODES);
+        final ConsistentHashRing other = new ConsistentHashRing(shuffled, VNODES);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.getNodes("key" + i, 2), other.getNodes("key" + i, 2));
+        }
+    }
+
+    @Test
+    public void balanced() {
+        final ConsistentHashRing ring = new ConsistentHashRing(NODES, VNODES);
+        final Map<String, Integer> primaries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            primaries.merge(ring.getNodes("key" + i, 1).get(0), 1, Integer::sum);
+        }
+        for (final String node : NODES) {
+            final double share = primaries.getOrDefault(node, 0) / (double) KEYS;
+            assertTrue(node + " owns " + share, share > 0.25 && share < 0.42);
+        }
+    }
+
+    @Test
+    public void addedNodeTakesKeysOnlyForItself() {
+        final ConsistentHashRing ring = new ConsistentHashRing(NODES, VNODES);
+        final List<String> grown = new ArrayList<>(NODES);
+        grown.add("http://localhost:8083");
+        final ConsistentHashRing bigger = new ConsistentHashRing(grown, VNODES);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String id = "key" + i;
+            final String before = ring.getNodes(id, 1).get(0);
+            final String after = bigger.getNodes(id, 1).get(0);
+            if (!before.equals(after)) {
+                assertEquals("http://localhost:8083", after);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > KEYS / 8 && moved < KEYS / 3);
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link Histogram}
+ */
+public class HistogramTest {
+    private static final int VALUES = 100_000;
+
+    @Test
+    public void empty() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.quantile(0.99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final Histogram histogram = new Histogram();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(0, histogram.quantile(0));
+        assertEquals(4, histogram.quantile(0.5));
+        assertEquals(9, histogram.quantile(1));
+    }
+
+    @Test
+    public void countAndSum() {
+        final Histogram histogram = new Histogram();
+        histogram.record(10);
+        histogram.record(20);
+        histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(30));
+        assertEquals(3, histogram.getCount());
+        assertEquals(60, histogram.getSum());
+    }
+
+    @Test
+    public void quantilesWithinRelativeError() {
+        final Histogram histogram = new Histogram();
+        for (int i = 1; i <= VALUES; i++) {
+            histogram.record(i);
+        }
+        for (final double quantile : new double[]{0.01, 0.5, 0.9, 0.99, 0.999, 1}) {
+            final long expected = (long) Math.ceil(quantile * VALUES);
+            final long actual = histogram.quantile(quantile);
+            assertTrue(quantile + ": " + actual, actual >= expected && actual <= expected * (1 + 1.0 / 32));
+        }
+    }
+
+    @Test
+    public void outliersAreClamped() {
+        final Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(TimeUnit.DAYS.toMicros(1));
+        assertEquals(0, histogram.quantile(0.5));
+        final long max = TimeUnit.HOURS.toMicros(1);
+        final long actual = histogram.quantile(1);
+        assertTrue(String.valueOf(actual), actual >= max && actual <= max * (1 + 1.0 / 32));
+        assertEquals(max, histogram.getSum());
+    }
+}
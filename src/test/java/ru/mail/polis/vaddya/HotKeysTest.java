@@ -0,0 +1,76 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link HotKeys}
+ */
+public class HotKeysTest {
+    private static final long WINDOW_MILLIS = 60_000;
+
+    @Test
+    public void hottestFirst() {
+        final HotKeys hotKeys = new HotKeys(3, WINDOW_MILLIS, 6);
+        hotKeys.record("warm", 20);
+        hotKeys.record("hot", 30);
+        hotKeys.record("cold", 10);
+        hotKeys.record("hot", 5);
+
+        final List<Map.Entry<String, Long>> top = hotKeys.top();
+        assertEquals(Arrays.asList("hot", "warm", "cold"), keys(top));
+        assertEquals(35, (long) top.get(0).getValue());
+    }
+
+    @Test
+    public void topIsLimited() {
+        final HotKeys hotKeys = new HotKeys(2, WINDOW_MILLIS, 6);
+        for (int i = 1; i <= 5; i++) {
+            hotKeys.record("key" + i, i * 100);
+        }
+        assertEquals(Arrays.asList("key5", "key4"), keys(hotKeys.top()));
+    }
+
+    @Test
+    public void emptyAmountIsIgnored() {
+        final HotKeys hotKeys = new HotKeys(2, WINDOW_MILLIS, 6);
+        hotKeys.record("key", 0);
+        hotKeys.record("key", -1);
+        assertTrue(hotKeys.top().isEmpty());
+    }
+
+    @Test
+    public void hotKeysSurviveManyColdOnes() {
+        final HotKeys hotKeys = new HotKeys(3, WINDOW_MILLIS, 6);
+        for (int i = 0; i < 10_000; i++) {
+            hotKeys.record("cold" + i, 1);
+            if (i % 10 == 0) {
+                hotKeys.record("hot" + i % 3, 10);
+            }
+        }
+        assertEquals(3, hotKeys.top().size());
+        for (final String key : keys(hotKeys.top())) {
+            assertTrue(key, key.startsWith("hot"));
+        }
+    }
+
+    @Test
+    public void keysLeaveWindow() throws InterruptedException {
+        final HotKeys hotKeys = new HotKeys(3, 100, 2);
+        hotKeys.record("key", 10);
+        assertEquals(1, hotKeys.top().size());
+        Thread.sleep(250);
+        assertTrue(hotKeys.top().isEmpty());
+    }
+
+    private static List<String> keys(final List<Map.Entry<String, Long>> top) {
+        return top.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,108 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link MemoryBudget}
+ */
+public class MemoryBudgetTest {
+    private Metrics metrics;
+    private MemoryBudget budget;
+
+    @Before
+    public void beforeEach() {
+        metrics = new Metrics();
+        budget = new MemoryBudget(100, metrics);
+    }
+
+    @Test
+    public void componentLimit() {
+        final MemoryBudget.Component component = budget.component("requests", 60);
+        assertTrue(component.tryReserve(60));
+        assertFalse(component.tryReserve(1));
+
+        component.release(10);
+        assertTrue(component.tryReserve(10));
+        assertEquals(1, rejected("requests").sum());
+    }
+
+    @Test
+    public void sharedTotal() {
+        final MemoryBudget.Component requests = budget.component("requests", 80);
+        final MemoryBudget.Component cache = budget.component("cache", 80);
+        assertTrue(requests.tryReserve(70));
+        assertFalse(cache.tryReserve(40));
+        assertTrue(cache.tryReserve(30));
+
+        requests.release(70);
+        assertTrue(cache.tryReserve(40));
+        assertEquals(1, rejected("cache").sum());
+    }
+
+    @Test
+    public void rejectedByTotalKeepsComponent() {
+        final MemoryBudget.Component requests = budget.component("requests", 100);
+        final MemoryBudget.Component cache = budget.component("cache", 50);
+        assertTrue(requests.tryReserve(90));
+        assertFalse(cache.tryReserve(20));
+
+        requests.release(90);
+        assertTrue("The rejected reservation must not be held", cache.tryReserve(50));
+    }
+
+    @Test
+    public void quietMissIsNotRejected() {
+        final MemoryBudget.Component cache = budget.component("cache", 10);
+        assertTrue(cache.tryReserveQuietly(10));
+        assertFalse(cache.tryReserveQuietly(1));
+        assertEquals(0, rejected("cache").sum());
+
+        cache.release(10);
+        assertTrue(cache.tryReserveQuietly(10));
+    }
+
+    @Test
+    public void limitIsCappedByTotal() {
+        final MemoryBudget.Component component = budget.component("requests", 1000);
+        assertFalse(component.tryReserve(101));
+        assertTrue(component.tryReserve(100));
+    }
+
+    @Test
+    public void emptyReservation() {
+        final MemoryBudget.Component component = budget.component("requests", 10);
+        assertTrue(component.tryReserve(10));
+        assertTrue(component.tryReserve(0));
+        component.release(0);
+        assertFalse(component.tryReserve(1));
+    }
+
+    @Test(expected = MemoryBudget.ExhaustedException.class)
+    public void reserveThrows() {
+        final MemoryBudget.Component component = budget.component("requests", 10);
+        component.reserve(10);
+        component.reserve(1);
+    }
+
+    @Test
+    public void gauges() {
+        final MemoryBudget.Component component = budget.component("requests", 60);
+        component.reserve(25);
+        final String text = metrics.toPrometheus();
+        assertTrue(text, text.contains("kv_memory_used_bytes{component=\"requests\"} 25\n"));
+        assertTrue(text, text.contains("kv_memory_used_bytes{component=\"total\"} 25\n"));
+        assertTrue(text, text.contains("kv_memory_limit_bytes{component=\"requests\"} 60\n"));
+    }
+
+    private LongAdder rejected(final String component) {
+        return metrics.counter("kv_memory_rejected_total{component=\"" + component + "\"}",
+                "Reservations rejected because the component or the total budget is exhausted");
+    }
+}
@@ -0,0 +1,83 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link MerkleTree}
+ */
+public class MerkleTreeTest {
+    private static final int LEAVES = 16;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void leavesNotPowerOfTwo() {
+        MerkleTree.build(new long[3]);
+    }
+
+    @Test
+    public void equalTrees() {
+        final long[] leaves = leaves();
+        assertTrue(MerkleTree.build(leaves).diff(MerkleTree.build(leaves.clone())).isEmpty());
+    }
+
+    @Test
+    public void differingLeaves() {
+        final long[] leaves = leaves();
+        final long[] other = leaves.clone();
+        other[3] ^= 1;
+        other[12] ^= 1;
+        assertEquals(Arrays.asList(3, 12), MerkleTree.build(leaves).diff(MerkleTree.build(other)));
+    }
+
+    @Test
+    public void singleLeaf() {
+        assertEquals(Collections.singletonList(0), MerkleTree.build(new long[]{1}).diff(MerkleTree.build(new long[]{2})));
+    }
+
+    @Test
+    public void serialization() {
+        final long[] leaves = leaves();
+        final MerkleTree tree = MerkleTree.build(leaves);
+        final long[] other = leaves.clone();
+        other[7] ^= 1;
+        assertTrue(MerkleTree.fromBytes(tree.toBytes()).diff(tree).isEmpty());
+        assertEquals(Collections.singletonList(7), MerkleTree.fromBytes(tree.toBytes()).diff(MerkleTree.build(other)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentShapes() {
+        MerkleTree.build(new long[2]).diff(MerkleTree.build(new long[4]));
+    }
+
+    @Test
+    public void entryHashCoversVersionAndContent() {
+        final byte[] data = "value".getBytes(StandardCharsets.UTF_8);
+        final long hash = MerkleTree.hashEntry("key", Value.present(1, 1, data));
+        assertEquals(hash, MerkleTree.hashEntry("key", Value.present(1, 3, data)));
+        assertNotEquals(hash, MerkleTree.hashEntry("other", Value.present(1, 1, data)));
+        assertNotEquals(hash, MerkleTree.hashEntry("key", Value.present(2, 1, data)));
+        assertNotEquals(hash, MerkleTree.hashEntry("key", Value.present(1, 1, new byte[]{1})));
+        assertNotEquals(hash, MerkleTree.hashEntry("key", Value.tombstone(1, 1)));
+    }
+
+    @Test
+    public void entryHashOfDigest() {
+        final Value value = Value.present(1, 1, "value".getBytes(StandardCharsets.UTF_8));
+        assertEquals(MerkleTree.hashEntry("key", value), MerkleTree.hashEntry("key", value.toDigest()));
+    }
+
+    private static long[] leaves() {
+        final long[] leaves = new long[LEAVES];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = Hash.mix64(i + 1);
+        }
+        return leaves;
+    }
+}
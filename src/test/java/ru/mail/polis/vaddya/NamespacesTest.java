@@ -0,0 +1,161 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link Namespaces}
+ */
+public class NamespacesTest {
+    private static final byte[] VALUE = "value".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private DAO entities;
+    private File dir;
+    private Metrics metrics;
+    private MemoryBudget.Component cacheMemory;
+
+    @Before
+    public void beforeEach() throws IOException {
+        entities = new DAOImpl(folder.newFolder("entities").getPath());
+        dir = new File(folder.getRoot(), Namespaces.DIR);
+        metrics = new Metrics();
+        cacheMemory = new MemoryBudget(1 << 20, metrics).component("cache", 1 << 20);
+    }
+
+    @Test
+    public void plainIds() {
+        assertTrue(Namespaces.isPlain("key"));
+        assertFalse(Namespaces.isPlain("meta/key"));
+        Namespaces.checkId("key");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void qualifiedClientId() {
+        Namespaces.checkId("meta/key");
+    }
+
+    @Test
+    public void routing() throws IOException {
+        final Namespaces namespaces = namespaces("meta;blobs");
+        namespaces.upsert("key", VALUE);
+        namespaces.upsert("meta/key", new byte[]{1});
+        namespaces.upsert("blobs/key", new byte[]{2});
+
+        assertArrayEquals(VALUE, entities.get("key"));
+        assertArrayEquals(VALUE, namespaces.get("key"));
+        assertArrayEquals(new byte[]{1}, namespaces.get("meta/key"));
+        assertArrayEquals(new byte[]{2}, namespaces.get("blobs/key"));
+
+        namespaces.delete("meta/key");
+        assertArrayEquals(VALUE, namespaces.get("key"));
+        try {
+            namespaces.get("meta/key");
+            fail("The value must be deleted");
+        } catch (NoSuchElementException e) {
+            assertArrayEquals(new byte[]{2}, namespaces.get("blobs/key"));
+        }
+    }
+
+    @Test
+    public void qualifiedKeys() throws IOException {
+        final Namespaces namespaces = namespaces("meta;blobs");
+        namespaces.upsert("a", VALUE);
+        namespaces.upsert("meta/b", VALUE);
+        namespaces.upsert("blobs/c", VALUE);
+
+        final Set<String> keys;
+        try (Stream<String> stream = namespaces.keys()) {
+            keys = stream.collect(Collectors.toSet());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("a", "meta/b", "blobs/c")), keys);
+    }
+
+    @Test
+    public void directories() throws IOException {
+        final Namespaces namespaces = namespaces("meta;blobs");
+        assertEquals(Arrays.asList("namespaces/meta", "namespaces/blobs"), namespaces.directories());
+        for (final String directory : namespaces.directories()) {
+            assertTrue(directory, new File(folder.getRoot(), directory).isDirectory());
+        }
+    }
+
+    @Test
+    public void options() throws IOException {
+        final Namespaces namespaces = namespaces("meta:cache=1024,replicas=3/3; blobs:compress=true");
+        assertEquals("3/3", namespaces.namespace("meta").getReplicas());
+        assertNull(namespaces.namespace("blobs").getReplicas());
+        assertNull(namespaces.namespace("other"));
+        assertEquals("meta/key", namespaces.namespace("meta").qualify("key"));
+    }
+
+    @Test
+    public void compressedValues() throws IOException {
+        final Namespaces namespaces = namespaces("blobs:compress=true");
+        final byte[] value = new byte[4096];
+        namespaces.upsert("blobs/key", value);
+        assertArrayEquals(value, namespaces.get("blobs/key"));
+    }
+
+    @Test
+    public void cachedValues() throws IOException {
+        final Namespaces namespaces = namespaces("meta:cache=1024");
+        namespaces.upsert("meta/key", VALUE);
+        assertArrayEquals(VALUE, namespaces.get("meta/key"));
+        final LongAdder hits = metrics.counter("kv_namespace_cache_hits_total{namespace=\"meta\"}", "Value cache hits");
+        assertEquals(1, hits.sum());
+    }
+
+    @Test
+    public void emptySpec() throws IOException {
+        final Namespaces namespaces = namespaces(" ; ");
+        assertTrue(namespaces.directories().isEmpty());
+        namespaces.upsert("key", VALUE);
+        assertArrayEquals(VALUE, entities.get("key"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidName() throws IOException {
+        namespaces("Meta");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateName() throws IOException {
+        namespaces("meta;meta");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOption() throws IOException {
+        namespaces("meta:ttl=10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedOption() throws IOException {
+        namespaces("meta:compress");
+    }
+
+    private Namespaces namespaces(final String spec) throws IOException {
+        return new Namespaces(entities, dir, spec, cacheMemory, metrics);
+    }
+}
@@ -0,0 +1,184 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link ReadCoalescer}
+ */
+public class ReadCoalescerTest {
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(5);
+    private Metrics metrics;
+    private ReadCoalescer coalescer;
+    private ExecutorService executor;
+
+    @Before
+    public void beforeEach() {
+        metrics = new Metrics();
+        coalescer = new ReadCoalescer(metrics);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void afterEach() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void followerJoinsFlight() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        final Response response = new Response(Response.OK);
+        final CompletableFuture<Response> leader = read(new QueryParams("key", 2, 3), params -> {
+            reads.incrementAndGet();
+            await(release);
+            return response;
+        });
+        awaitFlight();
+
+        final CompletableFuture<Response> follower = read(new QueryParams("key", 1, 3), params -> {
+            throw new AssertionError("The follower must not read");
+        });
+        awaitFollowers(1);
+        release.countDown();
+
+        assertSame(response, leader.join());
+        assertSame(response, follower.join());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void strongerReadDoesNotJoin() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<Response> leader = read(new QueryParams("key", 1, 3), params -> {
+            await(release);
+            return new Response(Response.OK);
+        });
+        awaitFlight();
+
+        assertEquals(Response.NOT_FOUND,
+                coalescer.read(new QueryParams("key", 2, 3), params -> new Response(Response.NOT_FOUND)).getCode());
+        assertEquals(Response.NOT_FOUND,
+                coalescer.read(new QueryParams("key", 1, 2), params -> new Response(Response.NOT_FOUND)).getCode());
+        release.countDown();
+        assertEquals(Response.OK, leader.join().getCode());
+    }
+
+    @Test
+    public void otherKeyDoesNotJoin() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<Response> leader = read(new QueryParams("key", 1, 1), params -> {
+            await(release);
+            return new Response(Response.OK);
+        });
+        awaitFlight();
+
+        assertEquals(Response.NOT_FOUND,
+                coalescer.read(new QueryParams("other", 1, 1), params -> new Response(Response.NOT_FOUND)).getCode());
+        release.countDown();
+        leader.join();
+    }
+
+    @Test
+    public void invalidatedFlightIsNotJoined() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<Response> leader = read(new QueryParams("key", 1, 1), params -> {
+            await(release);
+            return new Response(Response.OK);
+        });
+        awaitFlight();
+
+        coalescer.invalidate("key");
+        assertEquals(Response.NOT_FOUND,
+                coalescer.read(new QueryParams("key", 1, 1), params -> new Response(Response.NOT_FOUND)).getCode());
+        release.countDown();
+        leader.join();
+    }
+
+    @Test
+    public void failureReachesFollowers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<Response> leader = read(new QueryParams("key", 1, 1), params -> {
+            await(release);
+            throw new IllegalStateException("failed");
+        });
+        awaitFlight();
+        final CompletableFuture<Response> follower = read(new QueryParams("key", 1, 1), params -> {
+            throw new AssertionError("The follower must not read");
+        });
+        awaitFollowers(1);
+        release.countDown();
+
+        for (final CompletableFuture<Response> future : Arrays.asList(leader, follower)) {
+            try {
+                future.join();
+                fail("The read must fail");
+            } catch (CompletionException e) {
+                assertEquals("failed", e.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void flightEnds() {
+        coalescer.read(new QueryParams("key", 1, 1), params -> new Response(Response.OK));
+        assertEquals(Response.NOT_FOUND,
+                coalescer.read(new QueryParams("key", 1, 1), params -> new Response(Response.NOT_FOUND)).getCode());
+        assertEquals("0", gauge("kv_get_flights"));
+    }
+
+    private CompletableFuture<Response> read(final QueryParams params,
+                                             final Function<QueryParams, Response> reader) {
+        return CompletableFuture.supplyAsync(() -> coalescer.read(params, reader), executor);
+    }
+
+    private void awaitFlight() throws InterruptedException {
+        while (!"1".equals(gauge("kv_get_flights"))) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitFollowers(final int count) throws InterruptedException {
+        final LongAdder followers = metrics.counter("kv_get_coalescing_total{role=\"follower\"}",
+                "GETs which issued a replica read (leader) or joined one in flight (follower)");
+        while (followers.sum() < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private String gauge(final String name) {
+        for (final String line : metrics.toPrometheus().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return line.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
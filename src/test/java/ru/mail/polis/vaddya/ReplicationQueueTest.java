@@ -0,0 +1,157 @@
+package ru.mail.polis.vaddya;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link ReplicationQueue}
+ */
+public class ReplicationQueueTest {
+    private static final String PATH = "/v0/inner/batch";
+    private static final long LINGER_MICROS = TimeUnit.MILLISECONDS.toMicros(100);
+    private static final int MEMORY = 1024;
+
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(10);
+    private HttpServer peer;
+    private volatile int status = Response.CREATED;
+    private final List<Batch> received = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Integer> failures = new LinkedBlockingQueue<>();
+    private final List<Batch> failed = new CopyOnWriteArrayList<>();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private MemoryBudget.Component memory;
+    private ReplicationQueue queue;
+
+    @Before
+    public void beforeEach() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext(PATH, http -> {
+            received.add(Batch.fromBytes(readAll(http.getRequestBody())));
+            http.sendResponseHeaders(status, -1);
+            http.close();
+        });
+        peer.start();
+        memory = new MemoryBudget(MEMORY, new Metrics()).component("replication", MEMORY);
+    }
+
+    @After
+    public void afterEach() {
+        if (queue != null) {
+            queue.stop();
+        }
+        peer.stop(0);
+    }
+
+    @Test
+    public void concurrentWritesShareBatch() {
+        queue = queue("http://localhost:" + peer.getAddress().getPort());
+        final List<CompletableFuture<Response>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(queue.write("key" + i, ("value" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        for (final CompletableFuture<Response> result : results) {
+            assertEquals(Response.CREATED, result.join().getCode());
+        }
+
+        assertEquals(1, received.size());
+        final List<Batch.Record> records = received.get(0).getRecords();
+        assertEquals(3, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals("key" + i, records.get(i).getId());
+        }
+        assertEquals(1, batches.sum());
+        assertEquals(3, writes.sum());
+        assertTrue(failed.isEmpty());
+        assertTrue("The memory is to be released", memory.tryReserve(MEMORY));
+    }
+
+    @Test
+    public void rejectedBatchIsHandedOver() throws InterruptedException {
+        status = Response.SERVICE_UNAVAILABLE;
+        queue = queue("http://localhost:" + peer.getAddress().getPort());
+
+        assertEquals(Response.SERVICE_UNAVAILABLE, queue.write("key", new byte[]{1}).join().getCode());
+        assertEquals(Response.SERVICE_UNAVAILABLE, (int) failures.take());
+        assertEquals("key", failed.get(0).getRecords().get(0).getId());
+        assertTrue(memory.tryReserve(MEMORY));
+    }
+
+    @Test
+    public void unreachablePeer() throws IOException, InterruptedException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        queue = queue("http://localhost:" + port);
+
+        final Response response = queue.write("key", new byte[]{1}).join();
+        assertTrue(response.isUnreachable());
+        assertEquals(Response.SERVER_ERROR, (int) failures.take());
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void writeOverMemoryIsRejected() {
+        queue = queue("http://localhost:" + peer.getAddress().getPort());
+
+        assertEquals(Response.SERVICE_UNAVAILABLE, queue.write("key", new byte[MEMORY + 1]).join().getCode());
+        assertTrue(received.isEmpty());
+        assertTrue(failed.isEmpty());
+        assertEquals(0, writes.sum());
+    }
+
+    @Test
+    public void stoppedQueueFailsWrites() {
+        queue = queue("http://localhost:" + peer.getAddress().getPort());
+        queue.stop();
+
+        final CompletableFuture<Response> result = queue.write("key", new byte[]{1});
+        queue.stop();
+        assertEquals(Response.SERVER_ERROR, result.join().getCode());
+        assertFalse(result.join().isUnreachable());
+        assertTrue(received.isEmpty());
+        assertTrue(memory.tryReserve(MEMORY));
+    }
+
+    private ReplicationQueue queue(final String node) {
+        return new ReplicationQueue(node, PATH, LINGER_MICROS, 1,
+                (batch, response) -> {
+                    failed.add(batch);
+                    failures.add(response.getCode());
+                },
+                batches, writes, new Histogram(), memory);
+    }
+
+    private static byte[] readAll(final InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int read; (read = is.read(buffer)) > 0; ) {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+}
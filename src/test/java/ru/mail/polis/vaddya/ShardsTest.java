@@ -0,0 +1,182 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link Shards}
+ */
+public class ShardsTest {
+    private static final int COUNT = 4;
+    private static final int KEYS = 100;
+
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(5);
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+    private Shards shards;
+
+    @Before
+    public void beforeEach() {
+        dir = new File(folder.getRoot(), Shards.DIR);
+    }
+
+    @After
+    public void afterEach() {
+        if (shards != null) {
+            shards.stop();
+        }
+    }
+
+    @Test
+    public void valuesAreSpread() throws IOException {
+        shards = shards(COUNT, 16);
+        for (int i = 0; i < KEYS; i++) {
+            shards.upsert("key" + i, new byte[]{(byte) i});
+        }
+        for (int i = 0; i < KEYS; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, shards.get("key" + i));
+        }
+        assertEquals(KEYS, keys(shards).size());
+        for (final String directory : shards.directories()) {
+            final String[] files = new File(folder.getRoot(), directory).list();
+            assertTrue(directory + " is empty", files != null && files.length > 0);
+        }
+
+        shards.delete("key0");
+        try {
+            shards.get("key0");
+            fail("The value must be deleted");
+        } catch (NoSuchElementException e) {
+            assertEquals(KEYS - 1, keys(shards).size());
+        }
+    }
+
+    @Test
+    public void directories() throws IOException {
+        shards = shards(COUNT, 16);
+        assertEquals(Arrays.asList("shards/0", "shards/1", "shards/2", "shards/3"), shards.directories());
+    }
+
+    @Test
+    public void countIsKept() throws IOException {
+        assertFalse(Shards.exists(dir));
+        shards(COUNT, 16).upsert("key", new byte[]{1});
+        assertTrue(Shards.exists(dir));
+
+        assertArrayEquals(new byte[]{1}, shards(COUNT, 16).get("key"));
+        try {
+            shards(COUNT + 1, 16);
+            fail("The count must not change");
+        } catch (IOException e) {
+            assertEquals("Data is split into 4 shards, not 5", e.getMessage());
+        }
+    }
+
+    @Test
+    public void adopt() throws IOException {
+        final File entities = folder.newFolder("entities");
+        final DAO unsharded = new DAOImpl(entities.getPath());
+        for (int i = 0; i < KEYS; i++) {
+            unsharded.upsert("key" + i, new byte[]{(byte) i});
+        }
+
+        shards = shards(COUNT, 16);
+        assertEquals(KEYS, shards.adopt(entities));
+        for (int i = 0; i < KEYS; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, shards.get("key" + i));
+        }
+        assertEquals(0, keys(unsharded).size());
+    }
+
+    @Test(expected = FileAlreadyExistsException.class)
+    public void adoptConflict() throws IOException {
+        final File entities = folder.newFolder("entities");
+        new DAOImpl(entities.getPath()).upsert("key", new byte[]{1});
+
+        shards = shards(COUNT, 16);
+        shards.upsert("key", new byte[]{2});
+        shards.adopt(entities);
+    }
+
+    @Test
+    public void keyHasOwnThread() throws IOException {
+        shards = shards(COUNT, 16);
+        shards.start();
+        final Set<String> threads = new HashSet<>();
+        for (int i = 0; i < KEYS; i++) {
+            final String thread = threadOf("key" + i);
+            assertEquals(thread, threadOf("key" + i));
+            threads.add(thread);
+        }
+        assertEquals(COUNT, threads.size());
+    }
+
+    @Test
+    public void fullQueueRejects() throws IOException {
+        shards = shards(1, 1);
+        shards.executor("key").execute(() -> {
+        });
+        try {
+            shards.executor("key").execute(() -> {
+            });
+            fail("The queue must be full");
+        } catch (RejectedExecutionException e) {
+            assertEquals("Shard kv-shard-0 is overloaded", e.getMessage());
+        }
+    }
+
+    @Test
+    public void stopRunsQueuedTasks() throws IOException, InterruptedException {
+        shards = shards(1, 16);
+        final CountDownLatch queued = new CountDownLatch(1);
+        shards.executor("key").execute(queued::countDown);
+        shards.stop();
+        try {
+            shards.executor("key").execute(() -> {
+            });
+            fail("The shard must be stopped");
+        } catch (RejectedExecutionException e) {
+            shards.start();
+        }
+        queued.await();
+    }
+
+    private Shards shards(final int count, final int capacity) throws IOException {
+        return new Shards(dir, count, capacity, new Metrics());
+    }
+
+    private String threadOf(final String id) {
+        return CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), shards.executor(id)).join();
+    }
+
+    private static Set<String> keys(final DAO dao) throws IOException {
+        try (Stream<String> keys = dao.keys()) {
+            return keys.collect(Collectors.toSet());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link Stage}
+ */
+public class StageTest {
+    @Rule
+    public final Timeout globalTimeout = Timeout.seconds(5);
+    private final Metrics metrics = new Metrics();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private Stage stage;
+
+    @After
+    public void afterEach() {
+        release.countDown();
+        if (stage != null) {
+            stage.stop();
+        }
+    }
+
+    @Test
+    public void supply() throws IOException {
+        stage = Stage.unbounded("test", 2, metrics);
+        assertEquals("value", stage.call(() -> "value"));
+        assertEquals(Thread.currentThread().getName(), Stage.call(Runnable::run, () -> Thread.currentThread().getName()));
+    }
+
+    @Test(expected = IOException.class)
+    public void checkedExceptionIsRethrown() throws IOException {
+        stage = Stage.unbounded("test", 1, metrics);
+        stage.call(() -> {
+            throw new IOException("Disk is gone");
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uncheckedExceptionIsRethrown() throws IOException {
+        stage = Stage.unbounded("test", 1, metrics);
+        stage.call(() -> {
+            throw new IllegalArgumentException("Key is invalid");
+        });
+    }
+
+    @Test
+    public void lowerPriorityFirst() throws InterruptedException {
+        stage = Stage.prioritized("test", 1, metrics);
+        block();
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(4);
+        for (final String task : Arrays.asList("2", "1a", "1b", "0")) {
+            stage.execute(task.charAt(0) - '0', () -> {
+                order.add(task);
+                done.countDown();
+            });
+        }
+        release.countDown();
+        done.await();
+        assertEquals(Arrays.asList("0", "1a", "1b", "2"), order);
+    }
+
+    @Test
+    public void boundedRejects() {
+        stage = Stage.bounded("test", 1, 1, metrics);
+        block();
+        stage.execute(() -> {
+        });
+        try {
+            stage.execute(() -> {
+            });
+            fail("The queue must be full");
+        } catch (RejectedExecutionException e) {
+            assertEquals("Stage test is overloaded", e.getMessage());
+        }
+        assertEquals(1, metrics.counter("kv_stage_rejected_total{stage=\"test\"}",
+                "Tasks rejected by the full stage queue").sum());
+    }
+
+    @Test
+    public void stopRunsQueuedTasks() throws InterruptedException {
+        stage = Stage.unbounded("test", 1, metrics);
+        block();
+        final CountDownLatch queued = new CountDownLatch(1);
+        stage.execute(queued::countDown);
+        stage.stop();
+        try {
+            stage.execute(() -> {
+            });
+            fail("The stage must be stopped");
+        } catch (RejectedExecutionException e) {
+            release.countDown();
+        }
+        queued.await();
+    }
+
+    /**
+     * Occupies the only thread of the stage until {@link #release}
+     */
+    private void block() {
+        final CountDownLatch started = new CountDownLatch(1);
+        stage.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link Value}
+ */
+public class ValueTest {
+    private static final byte[] DATA = "value".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void roundTrip() {
+        final Value value = Value.fromBytes(Value.present(42, 3, DATA).toBytes());
+        assertEquals(42, value.getTimestamp());
+        assertEquals(3, value.getReplicas());
+        assertFalse(value.isTombstone());
+        assertFalse(value.isDigest());
+        assertArrayEquals(DATA, value.getData());
+    }
+
+    @Test
+    public void tombstoneRoundTrip() {
+        final Value value = Value.fromBytes(Value.tombstone(42, 2).toBytes());
+        assertTrue(value.isTombstone());
+        assertEquals(0, value.getData().length);
+    }
+
+    @Test
+    public void digestRoundTrip() {
+        final Value value = Value.present(42, 3, DATA);
+        final Value digest = Value.fromBytes(value.toDigest().toBytes());
+        assertTrue(digest.isDigest());
+        assertTrue(digest.isSameVersion(value));
+        assertEquals(value.etag(), digest.etag());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated() {
+        final byte[] bytes = Value.present(42, 3, DATA).toBytes();
+        Value.fromBytes(Arrays.copyOf(bytes, 5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rawIsNotVersioned() {
+        Value.fromBytes("a raw value longer than the header".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void legacyRawValue() {
+        final byte[] raw = "a raw value longer than the header".getBytes(StandardCharsets.UTF_8);
+        final Value value = Value.fromStored(raw);
+        assertEquals(0, value.getTimestamp());
+        assertArrayEquals(raw, value.getData());
+        assertTrue(Value.present(1, 1, DATA).isNewerThan(value));
+    }
+
+    @Test
+    public void shortLegacyRawValue() {
+        final byte[] raw = {1, 2, 3};
+        assertArrayEquals(raw, Value.fromStored(raw).getData());
+    }
+
+    @Test
+    public void storedVersionedValue() {
+        final Value value = Value.fromStored(Value.present(42, 3, DATA).toBytes());
+        assertEquals(42, value.getTimestamp());
+        assertArrayEquals(DATA, value.getData());
+    }
+
+    @Test
+    public void lastWriteWins() {
+        final Value older = Value.present(1, 1, DATA);
+        final Value newer = Value.present(2, 1, DATA);
+        assertTrue(newer.isNewerThan(older));
+        assertFalse(older.isNewerThan(newer));
+    }
+
+    @Test
+    public void tombstoneWinsTie() {
+        final Value present = Value.present(1, 1, DATA);
+        final Value tombstone = Value.tombstone(1, 1);
+        assertTrue(tombstone.isNewerThan(present));
+        assertFalse(present.isNewerThan(tombstone));
+    }
+
+    @Test
+    public void tieIsBrokenByContent() {
+        final Value a = Value.present(1, 1, "a".getBytes(StandardCharsets.UTF_8));
+        final Value b = Value.present(1, 1, "b".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(a.isNewerThan(b), b.isNewerThan(a));
+        assertEquals(a.isNewerThan(b), a.toDigest().isNewerThan(b));
+        assertEquals(a.isNewerThan(b), a.isNewerThan(b.toDigest()));
+    }
+
+    @Test
+    public void sameVersion() {
+        assertTrue(Value.present(1, 1, DATA).isSameVersion(Value.present(1, 3, DATA)));
+        assertFalse(Value.present(1, 1, DATA).isSameVersion(Value.present(2, 1, DATA)));
+        assertFalse(Value.present(1, 1, DATA).isSameVersion(Value.present(1, 1, new byte[]{1})));
+    }
+
+    @Test
+    public void etagDependsOnVersion() {
+        assertEquals(Value.present(1, 1, DATA).etag(), Value.present(1, 2, DATA).etag());
+        assertNotEquals(Value.present(1, 1, DATA).etag(), Value.present(2, 1, DATA).etag());
+    }
+}